@@ -1,6 +1,9 @@
 package com.iswoqqe.lox;
 
-class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String>, FlatAst.Visitor<String> {
+    // tree being printed by the FlatAst visitor methods
+    private FlatAst ast = null;
+
     String getString(Stmt stmt) {
         return stmt.accept(this);
     }
@@ -9,6 +12,17 @@ class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return expr.accept(this);
     }
 
+    String getString(FlatAst ast, int node) {
+        FlatAst previous = this.ast;
+        this.ast = ast;
+
+        try {
+            return node == FlatAst.NONE ? "nil" : ast.accept(node, this);
+        } finally {
+            this.ast = previous;
+        }
+    }
+
     @Override
     public String visitReturnStmt(Stmt.Return stmt) {
         return parenthesize("return", stmt.expression);
@@ -20,6 +34,12 @@ class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize("while", stmt.condition, stmt.statement);
     }
 
+    @Override
+    public String visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        // printed like the flat tree, which only has the plain loop
+        return visitWhileStmt(stmt.loop);
+    }
+
     @Override
     public String visitIfStmt(Stmt.If stmt) {
         return parenthesize("if", stmt.condition, stmt.thenBranch, stmt.elseBranch);
@@ -81,6 +101,13 @@ class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
         return builder.toString();
     }
+
+    // printed like the flat tree, which only has the original
+    @Override
+    public String visitFusedExpr(Expr.Fused expr) {
+        return expr.original.accept(this);
+    }
+
     @Override
     public String visitCallExpr(Expr.Call expr) {
         StringBuilder builder = new StringBuilder();
@@ -145,6 +172,162 @@ class ASTPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize("ternary", expr.condition, expr.trueBranch, expr.falseBranch);
     }
 
+    // the same output for the flat representation
+
+    @Override
+    public String visitReturnStmt(int node) {
+        return parenthesizeNodes("return", ast.expression(node));
+    }
+
+    @Override
+    public String visitWhileStmt(int node) {
+        return parenthesizeNodes("while", ast.condition(node), ast.body(node));
+    }
+
+    @Override
+    public String visitIfStmt(int node) {
+        return parenthesizeNodes("if", ast.condition(node), ast.thenBranch(node), ast.elseBranch(node));
+    }
+
+    @Override
+    public String visitBlockStmt(int node) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(block");
+
+        for (int i = 0; i < ast.statementCount(node); ++i) {
+            builder.append(' ');
+            builder.append(asString(ast.statement(node, i)));
+        }
+        builder.append(')');
+        return builder.toString();
+    }
+
+    @Override
+    public String visitVarStmt(int node) {
+        return "(def " + ast.lexeme(ast.name(node)) + " " + asString(ast.value(node)) + ")";
+    }
+
+    @Override
+    public String visitExpressionStmt(int node) {
+        return asString(ast.expression(node));
+    }
+
+    @Override
+    public String visitPrintStmt(int node) {
+        return parenthesizeNodes("print", ast.expression(node));
+    }
+
+    @Override
+    public String visitFunctionExpr(int node) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(fn [");
+
+        for (int i = 0; i < ast.parameterCount(node); ++i) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(ast.lexeme(ast.parameter(node, i)));
+        }
+
+        builder.append("] ");
+
+        int body = ast.body(node);
+        for (int i = 0; i < ast.statementCount(body); ++i) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(asString(ast.statement(body, i)));
+        }
+        builder.append(')');
+
+        return builder.toString();
+    }
+
+    @Override
+    public String visitCallExpr(int node) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(call ");
+        builder.append(asString(ast.callee(node)));
+
+        for (int i = 0; i < ast.argumentCount(node); ++i) {
+            builder.append(' ');
+            builder.append(asString(ast.argument(node, i)));
+        }
+
+        builder.append(')');
+
+        return builder.toString();
+    }
+
+    @Override
+    public String visitOrExpr(int node) {
+        return parenthesizeNodes("or", ast.left(node), ast.right(node));
+    }
+
+    @Override
+    public String visitAndExpr(int node) {
+        return parenthesizeNodes("and", ast.left(node), ast.right(node));
+    }
+
+    @Override
+    public String visitAssignExpr(int node) {
+        return "(redef " + ast.lexeme(ast.name(node)) + " " + asString(ast.value(node)) + ")";
+    }
+
+    @Override
+    public String visitVarExpr(int node) {
+        return "@" + ast.lexeme(ast.name(node));
+    }
+
+    @Override
+    public String visitBinaryExpr(int node) {
+        return parenthesizeNodes(ast.lexeme(ast.operator(node)), ast.left(node), ast.right(node));
+    }
+
+    @Override
+    public String visitGroupingExpr(int node) {
+        return parenthesizeNodes("group", ast.expression(node));
+    }
+
+    @Override
+    public String visitLiteralExpr(int node) {
+        Object value = ast.literal(node);
+
+        if (value instanceof String) {
+            return '"' + (String) value + '"';
+        }
+        return value == null ? "nil" : value.toString();
+    }
+
+    @Override
+    public String visitUnaryExpr(int node) {
+        return parenthesizeNodes(ast.lexeme(ast.operator(node)), ast.operand(node));
+    }
+
+    @Override
+    public String visitTernaryExpr(int node) {
+        return parenthesizeNodes("ternary", ast.condition(node), ast.thenBranch(node), ast.elseBranch(node));
+    }
+
+    private String parenthesizeNodes(String name, int... nodes) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('(');
+        builder.append(name);
+
+        for (int node : nodes) {
+            builder.append(" ");
+            builder.append(asString(node));
+        }
+
+        builder.append(")");
+
+        return builder.toString();
+    }
+
+    private String asString(int node) {
+        return node == FlatAst.NONE ? "nil" : ast.accept(node, this);
+    }
+
     private String parenthesize(Object ...args) {
         StringBuilder builder = new StringBuilder();
         builder.append('(');
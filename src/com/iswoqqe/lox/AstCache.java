@@ -0,0 +1,815 @@
+package com.iswoqqe.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+// Resolved programs stored on disk, keyed by the SHA-256 of the source and the format version. Entries are
+// written to a temporary file and moved into place atomically, so processes sharing the directory see
+// either a whole entry or none. A damaged or unreadable entry counts as a miss. When the entries outgrow
+// maxSize the least recently used are deleted, by one process at a time, along with stale temporary files.
+class AstCache {
+    // bump whenever the AST, the resolver, the passes after it or this format changes
+    private static final int VERSION = 8;
+    private static final int MAGIC = 0x4c4f5841; // "LOXA"
+    private static final String SUFFIX = ".ast";
+    // a temporary file this old was left by a process that died before moving it into place
+    private static final long STALE_MILLIS = 10 * 60 * 1000;
+
+    private final Path directory;
+    private final long maxSize;
+
+    AstCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    // null on a miss, globals not declared by the program are looked up in builtins
+    Program load(ByteBuffer source, Globals builtins) {
+        byte[] key = key(source);
+        Path path = directory.resolve(hex(key) + SUFFIX);
+
+        Program program;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            program = decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), key, builtins);
+        } catch (IOException | RuntimeException e) {
+            // missing, being replaced or damaged
+            return null;
+        }
+
+        if (program != null) {
+            touch(path);
+        }
+        return program;
+    }
+
+    // Recently used entries survive eviction. Only the owner of an entry may set its time, other users of a
+    // shared cache still get the hit.
+    private static void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // left to age, it is written again once evicted
+        }
+    }
+
+    void store(ByteBuffer source, Program program) {
+        byte[] key = key(source);
+
+        try {
+            Files.createDirectories(directory);
+            // not createTempFile, its files are only readable by their owner and the move keeps that
+            Path temporary = directory.resolve("entry" + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                    + ".tmp");
+            // opened before the try, a name that is taken belongs to another process and is not ours to delete
+            OutputStream out = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW);
+
+            try {
+                try (OutputStream stream = out) {
+                    stream.write(encode(program, key));
+                }
+                Files.move(temporary, directory.resolve(hex(key) + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+            evict();
+        } catch (IOException e) {
+            // the cache is only an optimization
+        }
+    }
+
+    private void evict() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                // another process is evicting
+                return;
+            }
+
+            deleteStale();
+
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+            }
+
+            Map<Path, Long> sizes = new HashMap<>();
+            Map<Path, Long> times = new HashMap<>();
+            long total = 0;
+
+            for (Path entry : entries) {
+                try {
+                    sizes.put(entry, Files.size(entry));
+                    times.put(entry, Files.getLastModifiedTime(entry).toMillis());
+                    total += sizes.get(entry);
+                } catch (IOException e) {
+                    // deleted meanwhile
+                    sizes.put(entry, 0L);
+                    times.put(entry, 0L);
+                }
+            }
+
+            entries.sort((a, b) -> Long.compare(times.get(a), times.get(b)));
+
+            for (int i = 0; i < entries.size() && total > maxSize; ++i) {
+                Files.deleteIfExists(entries.get(i));
+                total -= sizes.get(entries.get(i));
+            }
+        }
+    }
+
+    // called with the lock held, younger temporary files may still be written
+    private void deleteStale() throws IOException {
+        long now = System.currentTimeMillis();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "entry*.tmp")) {
+            for (Path temporary : stream) {
+                try {
+                    if (now - Files.getLastModifiedTime(temporary).toMillis() > STALE_MILLIS) {
+                        Files.deleteIfExists(temporary);
+                    }
+                } catch (IOException e) {
+                    // moved into place meanwhile, or not ours to delete
+                }
+            }
+        }
+    }
+
+    private static byte[] key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            digest.update((byte) VERSION);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] encode(Program program, byte[] key) {
+        Writer writer = new Writer();
+
+        writer.writeInt(MAGIC);
+        writer.writeInt(VERSION);
+        writer.writeBytes(key);
+        writer.writeVarint(program.frameSize);
+        writer.writeStmts(program.statements);
+
+        CRC32 crc = new CRC32();
+        crc.update(writer.buffer, 0, writer.size);
+        writer.writeLong(crc.getValue());
+        return Arrays.copyOf(writer.buffer, writer.size);
+    }
+
+    private static Program decode(ByteBuffer entry, byte[] key, Globals builtins) {
+        if (entry.limit() < 8) {
+            return null;
+        }
+
+        ByteBuffer contents = entry.duplicate();
+        contents.limit(entry.limit() - 8);
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.duplicate());
+        if (crc.getValue() != entry.getLong(entry.limit() - 8)) {
+            return null;
+        }
+
+        if (contents.getInt() != MAGIC || contents.getInt() != VERSION) {
+            return null;
+        }
+
+        byte[] entryKey = new byte[key.length];
+        contents.get(entryKey);
+        if (!Arrays.equals(entryKey, key)) {
+            return null;
+        }
+
+        Reader reader = new Reader(contents, builtins);
+        int frameSize = reader.readVarint();
+        List<Stmt> statements = reader.readStmts();
+
+        return reader.linked ? new Program(statements, reader.newGlobals, frameSize) : null;
+    }
+
+    // node tags
+    private static final int NULL = 0;
+    private static final int BINARY = 1;
+    private static final int CALL = 2;
+    private static final int GROUPING = 3;
+    private static final int LITERAL = 4;
+    private static final int TERNARY = 5;
+    private static final int UNARY = 6;
+    private static final int VAR = 7;
+    private static final int ASSIGN = 8;
+    private static final int OR = 9;
+    private static final int AND = 10;
+    private static final int FUNCTION = 11;
+    private static final int EXPRESSION_STMT = 12;
+    private static final int PRINT_STMT = 13;
+    private static final int VAR_STMT = 14;
+    private static final int BLOCK_STMT = 15;
+    private static final int IF_STMT = 16;
+    private static final int WHILE_STMT = 17;
+    private static final int RETURN_STMT = 18;
+    private static final int COUNTED_LOOP_STMT = 19;
+    private static final int FUSED = 20;
+
+    // literal tags
+    private static final int NIL_VALUE = 0;
+    private static final int FALSE_VALUE = 1;
+    private static final int TRUE_VALUE = 2;
+    private static final int NUMBER_VALUE = 3;
+    private static final int STRING_VALUE = 4;
+
+    // Global cells are written as the variable's name and linked again when reading. Strings are written
+    // once and referred to by index after that, counts and positions are unsigned varints.
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        byte[] buffer = new byte[4096];
+        int size = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void writeStmts(List<Stmt> statements) {
+            writeVarint(statements.size());
+            for (Stmt statement : statements) {
+                writeStmt(statement);
+            }
+        }
+
+        private void writeStmt(Stmt stmt) {
+            if (stmt == null) {
+                writeByte(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void writeExpr(Expr expr) {
+            if (expr == null) {
+                writeByte(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void writeToken(Token token) {
+            writeByte(token.type.ordinal());
+            writeString(token.lexeme);
+            writeVarint(token.line);
+            writeVarint(token.column);
+        }
+
+        private void writeString(String string) {
+            Integer index = strings.get(string);
+
+            if (index != null) {
+                writeVarint(index);
+                return;
+            }
+
+            writeVarint(strings.size());
+            strings.put(string, strings.size());
+
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            writeBytes(bytes);
+        }
+
+        // depth and slot of a local, or nothing for a global
+        // a local is followed by its capture index if it is captured, else by whether it is boxed
+        private void writeResolution(Variable resolved, int depth, int slot, int capture, boolean boxed) {
+            if (resolved != null) {
+                writeByte(0);
+            } else {
+                writeByte(1);
+                writeVarint(depth);
+                writeVarint(slot);
+                writeVarint(depth > 0 ? capture : boxed ? 1 : 0);
+            }
+        }
+
+        private void writeInts(int[] ints) {
+            writeVarint(ints.length);
+            for (int i : ints) {
+                writeVarint(i);
+            }
+        }
+
+        private void ensure(int more) {
+            if (size + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(size + more, buffer.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int i) {
+            writeByte(i >>> 24);
+            writeByte(i >>> 16);
+            writeByte(i >>> 8);
+            writeByte(i);
+        }
+
+        void writeLong(long l) {
+            writeInt((int) (l >>> 32));
+            writeInt((int) l);
+        }
+
+        void writeVarint(int i) {
+            while ((i & ~0x7f) != 0) {
+                writeByte((i & 0x7f) | 0x80);
+                i >>>= 7;
+            }
+            writeByte(i);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            writeExpr(expr.left);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeByte(CALL);
+            writeExpr(expr.callee);
+            writeToken(expr.paren);
+            writeVarint(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                writeExpr(argument);
+            }
+            writeByte(expr.tail ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            writeExpr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+
+            if (expr.value == null) {
+                writeByte(NIL_VALUE);
+            } else if (expr.value instanceof Boolean) {
+                writeByte((Boolean) expr.value ? TRUE_VALUE : FALSE_VALUE);
+            } else if (expr.value instanceof Double) {
+                writeByte(NUMBER_VALUE);
+                writeLong(Double.doubleToRawLongBits((Double) expr.value));
+            } else {
+                writeByte(STRING_VALUE);
+                writeString((String) expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            writeByte(TERNARY);
+            writeExpr(expr.condition);
+            writeExpr(expr.trueBranch);
+            writeExpr(expr.falseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            writeToken(expr.operator);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.Var expr) {
+            writeByte(VAR);
+            writeToken(expr.name);
+            writeResolution(expr.resolved, expr.depth, expr.slot, expr.capture, expr.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            writeToken(expr.name);
+            writeResolution(expr.resolved, expr.depth, expr.slot, expr.capture, expr.boxed);
+            writeExpr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitOrExpr(Expr.Or expr) {
+            writeByte(OR);
+            writeExpr(expr.left);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitAndExpr(Expr.And expr) {
+            writeByte(AND);
+            writeExpr(expr.left);
+            writeExpr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            writeByte(FUNCTION);
+            writeVarint(expr.parameters.size());
+            for (Token parameter : expr.parameters) {
+                writeToken(parameter);
+            }
+            writeStmts(expr.body);
+            writeVarint(expr.frameSize);
+            writeInts(expr.captures);
+            writeInts(expr.boxedParameters);
+            writeByte(expr.memoizable ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitFusedExpr(Expr.Fused expr) {
+            writeByte(FUSED);
+            writeByte(expr.shape.ordinal());
+            writeExpr(expr.original);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeByte(EXPRESSION_STMT);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            writeByte(PRINT_STMT);
+            writeExpr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            writeByte(VAR_STMT);
+            writeToken(stmt.name);
+            writeResolution(stmt.resolved, 0, stmt.slot, 0, stmt.boxed);
+            writeExpr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeByte(BLOCK_STMT);
+            writeStmts(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeByte(IF_STMT);
+            writeExpr(stmt.condition);
+            writeStmt(stmt.thenBranch);
+            writeStmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeByte(WHILE_STMT);
+            writeExpr(stmt.condition);
+            writeStmt(stmt.statement);
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            writeByte(COUNTED_LOOP_STMT);
+            writeExpr(stmt.condition);
+            writeStmt(stmt.body);
+            writeExpr(stmt.increment);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            writeByte(RETURN_STMT);
+            writeExpr(stmt.expression);
+            return null;
+        }
+    }
+
+    // Malformed entries end in an unchecked exception, which load turns into a miss.
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final ByteBuffer in;
+        private final Globals builtins;
+        private String[] strings = new String[256];
+        // symbol of each string, interned the first time an identifier uses it
+        private int[] symbols = new int[256];
+        private int stringCount = 0;
+        final Globals newGlobals = new Globals();
+        // false if a global could not be found, the entry is then treated as a miss
+        boolean linked = true;
+
+        Reader(ByteBuffer in, Globals builtins) {
+            this.in = in;
+            this.builtins = builtins;
+        }
+
+        List<Stmt> readStmts() {
+            int size = readVarint();
+            List<Stmt> statements = new ArrayList<>(size);
+
+            for (int i = 0; i < size; ++i) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        private Stmt readStmt() {
+            int tag = in.get();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case EXPRESSION_STMT:
+                    return new Stmt.Expression(readExpr());
+                case PRINT_STMT:
+                    return new Stmt.Print(readExpr());
+                case VAR_STMT: {
+                    Token name = readToken();
+                    Stmt.Var stmt;
+
+                    if (in.get() == 0) {
+                        stmt = new Stmt.Var(name, declare(name), readExpr());
+                    } else {
+                        readVarint();
+                        int slot = readVarint();
+                        boolean boxed = readVarint() != 0;
+                        stmt = new Stmt.Var(name, null, readExpr());
+                        stmt.slot = slot;
+                        stmt.boxed = boxed;
+                    }
+                    return stmt;
+                }
+                case BLOCK_STMT:
+                    return new Stmt.Block(readStmts());
+                case IF_STMT:
+                    return new Stmt.If(readExpr(), readStmt(), readStmt());
+                case WHILE_STMT:
+                    return new Stmt.While(readExpr(), readStmt());
+                case RETURN_STMT:
+                    return new Stmt.Return(readExpr());
+                case COUNTED_LOOP_STMT:
+                    return new Stmt.CountedLoop((Expr.Binary) readExpr(), readStmt(), (Expr.Assign) readExpr());
+                default:
+                    throw new IllegalStateException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private Expr readExpr() {
+            int tag = in.get();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BINARY:
+                    return new Expr.Binary(readExpr(), readToken(), readExpr());
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    int size = readVarint();
+                    List<Expr> arguments = new ArrayList<>(size);
+                    for (int i = 0; i < size; ++i) {
+                        arguments.add(readExpr());
+                    }
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    call.tail = in.get() != 0;
+                    return call;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readValue());
+                case TERNARY:
+                    return new Expr.Ternary(readExpr(), readExpr(), readExpr());
+                case UNARY:
+                    return new Expr.Unary(readToken(), readExpr());
+                case VAR: {
+                    Token name = readToken();
+
+                    if (in.get() == 0) {
+                        return new Expr.Var(name, lookup(name));
+                    }
+
+                    Expr.Var var = new Expr.Var(name, null);
+                    var.depth = readVarint();
+                    var.slot = readVarint();
+
+                    if (var.depth > 0) {
+                        var.capture = readVarint();
+                    } else {
+                        var.boxed = readVarint() != 0;
+                    }
+                    return var;
+                }
+                case ASSIGN: {
+                    Token name = readToken();
+
+                    if (in.get() == 0) {
+                        return new Expr.Assign(name, lookup(name), readExpr());
+                    }
+
+                    int depth = readVarint();
+                    int slot = readVarint();
+                    int captureOrBoxed = readVarint();
+                    Expr.Assign assign = new Expr.Assign(name, null, readExpr());
+                    assign.depth = depth;
+                    assign.slot = slot;
+
+                    if (depth > 0) {
+                        assign.capture = captureOrBoxed;
+                    } else {
+                        assign.boxed = captureOrBoxed != 0;
+                    }
+                    return assign;
+                }
+                case FUSED: {
+                    // the operands are taken from the original again
+                    Superinstructions.Shape shape = Superinstructions.Shape.values()[in.get()];
+                    return shape.fuse(readExpr());
+                }
+                case OR:
+                    return new Expr.Or(readExpr(), readExpr());
+                case AND:
+                    return new Expr.And(readExpr(), readExpr());
+                case FUNCTION: {
+                    int size = readVarint();
+                    List<Token> parameters = new ArrayList<>(size);
+                    for (int i = 0; i < size; ++i) {
+                        parameters.add(readToken());
+                    }
+                    Expr.Function function = new Expr.Function(parameters, readStmts());
+                    function.frameSize = readVarint();
+                    function.captures = readInts();
+                    function.boxedParameters = readInts();
+                    function.memoizable = in.get() != 0;
+                    return function;
+                }
+                default:
+                    throw new IllegalStateException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Object readValue() {
+            int tag = in.get();
+
+            switch (tag) {
+                case NIL_VALUE:
+                    return null;
+                case FALSE_VALUE:
+                    return false;
+                case TRUE_VALUE:
+                    return true;
+                case NUMBER_VALUE:
+                    return Double.longBitsToDouble(in.getLong());
+                case STRING_VALUE:
+                    return strings[readString()];
+                default:
+                    throw new IllegalStateException("Unknown literal tag " + tag + ".");
+            }
+        }
+
+        private Token readToken() {
+            TokenType type = TYPES[in.get()];
+            int index = readString();
+            int line = readVarint();
+            int column = readVarint();
+            int symbol = -1;
+
+            if (type == TokenType.IDENTIFIER) {
+                if (symbols[index] < 0) {
+                    symbols[index] = Symbols.intern(strings[index]);
+                }
+                symbol = symbols[index];
+            }
+
+            return new Token(type, strings[index], null, line, column, symbol);
+        }
+
+        // index into the string table
+        private int readString() {
+            int index = readVarint();
+
+            if (index == stringCount) {
+                byte[] bytes = new byte[readVarint()];
+                in.get(bytes);
+
+                if (stringCount == strings.length) {
+                    strings = Arrays.copyOf(strings, stringCount * 2);
+                    symbols = Arrays.copyOf(symbols, stringCount * 2);
+                }
+                strings[stringCount] = new String(bytes, StandardCharsets.UTF_8);
+                symbols[stringCount] = -1;
+                stringCount += 1;
+            }
+            return index;
+        }
+
+        private int[] readInts() {
+            int[] ints = new int[readVarint()];
+            for (int i = 0; i < ints.length; ++i) {
+                ints[i] = readVarint();
+            }
+            return ints;
+        }
+
+        int readVarint() {
+            int value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        // cell of a top level variable, the program's own globals shadow the builtins like in the Resolver
+        private Variable declare(Token name) {
+            Variable variable = newGlobals.get(name.symbol);
+
+            if (variable == null) {
+                variable = new Variable();
+                newGlobals.put(name.symbol, variable);
+            }
+            return variable;
+        }
+
+        private Variable lookup(Token name) {
+            Variable variable = newGlobals.get(name.symbol);
+
+            if (variable == null) {
+                variable = builtins.get(name.symbol);
+            }
+            if (variable == null) {
+                linked = false;
+            }
+            return variable;
+        }
+    }
+}
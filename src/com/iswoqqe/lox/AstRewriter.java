@@ -0,0 +1,240 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base of the passes that run between the Resolver and the engines. It copies a resolved tree, keeping nodes
+// whose children did not change, and new nodes carry over what the resolver recorded. Passes override the
+// nodes they rewrite. A statement rewritten to null is dropped from its list.
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+
+        for (Stmt statement : statements) {
+            Stmt stmt = rewrite(statement);
+
+            if (stmt != null) {
+                rewritten.add(stmt);
+            }
+        }
+
+        return rewritten;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    // branches must stay statements
+    Stmt branch(Stmt stmt) {
+        Stmt rewritten = rewrite(stmt);
+        return rewritten != null ? rewritten : new Stmt.Block(new ArrayList<>());
+    }
+
+    private static boolean same(List<?> a, List<?> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < a.size(); ++i) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+
+        for (Expr argument : expr.arguments) {
+            arguments.add(rewrite(argument));
+        }
+
+        if (callee == expr.callee && same(arguments, expr.arguments)) {
+            return expr;
+        }
+
+        Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+        call.tail = expr.tail;
+        return call;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = rewrite(expr.condition);
+        Expr trueBranch = rewrite(expr.trueBranch);
+        Expr falseBranch = rewrite(expr.falseBranch);
+
+        if (condition == expr.condition && trueBranch == expr.trueBranch && falseBranch == expr.falseBranch) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, trueBranch, falseBranch);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVarExpr(Expr.Var expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+
+        if (value == expr.value) {
+            return expr;
+        }
+
+        Expr.Assign assign = new Expr.Assign(expr.name, expr.resolved, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.capture = expr.capture;
+        assign.boxed = expr.boxed;
+        return assign;
+    }
+
+    @Override
+    public Expr visitOrExpr(Expr.Or expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Or(left, right);
+    }
+
+    @Override
+    public Expr visitAndExpr(Expr.And expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.And(left, right);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        List<Stmt> body = rewrite(expr.body);
+
+        if (same(body, expr.body)) {
+            return expr;
+        }
+
+        Expr.Function function = new Expr.Function(expr.parameters, body);
+        function.frameSize = expr.frameSize;
+        function.captures = expr.captures;
+        function.boxedParameters = expr.boxedParameters;
+        function.memoizable = expr.memoizable;
+        return function;
+    }
+
+    // passes that run after Superinstructions see the original tree
+    @Override
+    public Expr visitFusedExpr(Expr.Fused expr) {
+        return rewrite(expr.original);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+
+        if (initializer == stmt.initializer) {
+            return stmt;
+        }
+
+        Stmt.Var var = new Stmt.Var(stmt.name, stmt.resolved, initializer);
+        var.slot = stmt.slot;
+        var.boxed = stmt.boxed;
+        return var;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        return same(statements, stmt.statements) ? stmt : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt statement = branch(stmt.statement);
+
+        if (condition == stmt.condition && statement == stmt.statement) {
+            return stmt;
+        }
+        return new Stmt.While(condition, statement);
+    }
+
+    // passes that run after the LoopOptimizer see the plain loop
+    @Override
+    public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return visitWhileStmt(stmt.loop);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Return(expression);
+    }
+}
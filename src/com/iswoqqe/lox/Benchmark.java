@@ -0,0 +1,152 @@
+package com.iswoqqe.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Times each engine on the given scripts, e.g. bench/*.lox. Every run gets a fresh interpreter and a freshly
+// parsed tree, so caches and specializations from one run never leak into the next. Only interpretation is
+// timed, and script output is discarded while it runs. With --call-sites the engines that use the call site
+// caches also print the hits and misses of every call that ran in their last run.
+public class Benchmark {
+    private static final List<String> ENGINES = Arrays.asList("tree", "switch", "spec", "jit", "closure", "vm", "flat");
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+    // the engines that call through Interpreter.call
+    private static final List<String> CACHING_ENGINES = Arrays.asList("tree", "switch", "spec");
+
+    // every call node of a tree, fused calls included
+    private static class CallCollector extends AstRewriter {
+        final List<Expr.Call> calls = new ArrayList<>();
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            calls.add(expr);
+            return super.visitCallExpr(expr);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> engines = new ArrayList<>(ENGINES);
+        List<String> files = new ArrayList<>();
+        boolean callSites = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--engines=")) {
+                engines = Arrays.asList(arg.substring("--engines=".length()).split(","));
+            } else if (arg.equals("--call-sites")) {
+                callSites = true;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.out.println("usage: benchmark [--engines=tree,spec,...] [--call-sites] script...");
+            System.exit(64);
+        }
+
+        System.out.printf("%-20s %-8s %10s %10s%n", "script", "engine", "best ms", "mean ms");
+
+        for (String file : files) {
+            String source = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+
+            for (String engine : engines) {
+                for (int i = 0; i < WARMUP; ++i) {
+                    time(source, engine, null);
+                }
+
+                long best = Long.MAX_VALUE;
+                long total = 0;
+                List<Stmt> last = new ArrayList<>();
+
+                for (int i = 0; i < RUNS; ++i) {
+                    last.clear();
+                    long elapsed = time(source, engine, last);
+                    best = Math.min(best, elapsed);
+                    total += elapsed;
+                }
+
+                System.out.printf("%-20s %-8s %10.1f %10.1f%n",
+                        Paths.get(file).getFileName(), engine, best / 1e6, total / 1e6 / RUNS);
+
+                if (callSites && CACHING_ENGINES.contains(engine)) {
+                    printCallSites(last);
+                }
+            }
+        }
+    }
+
+    private static void printCallSites(List<Stmt> statements) {
+        CallCollector collector = new CallCollector();
+        collector.rewrite(statements);
+
+        for (Expr.Call call : collector.calls) {
+            CallSiteCache cache = call.cache;
+
+            if (cache.getHits() + cache.getMisses() == 0) {
+                continue;
+            }
+
+            System.out.printf("    call at %d:%-6d %12d hits %8d misses%s%n", call.paren.line, call.paren.column,
+                    cache.getHits(), cache.getMisses(), cache.isMegamorphic() ? "  megamorphic" : "");
+        }
+    }
+
+    // the statements that ran are added to ran unless it is null
+    private static long time(String source, String engine, List<Stmt> ran) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setSwitchDispatch(engine.equals("switch"));
+        interpreter.setSpecializing(engine.equals("spec"));
+        interpreter.setJit(engine.equals("jit"));
+
+        List<Stmt> statements = new Parser(new Scanner(source)).parse();
+        Resolver resolver = new Resolver(statements, interpreter.getGlobalsRef());
+        resolver.resolve();
+        Program program = Lox.optimize(statements, resolver.getNewGlobalsRef(), resolver.getFrameSize(), true);
+        interpreter.defineNewGlobals(program.newGlobals);
+
+        if (ran != null) {
+            ran.addAll(program.statements);
+        }
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        long start = System.nanoTime();
+        try {
+            switch (engine) {
+                case "tree":
+                case "switch":
+                case "spec":
+                case "jit":
+                    interpreter.interpret(program.statements, program.frameSize);
+                    break;
+                case "closure":
+                    new ClosureCompiler(interpreter).interpret(program.statements, program.frameSize);
+                    break;
+                case "vm":
+                    new VM(interpreter).interpret(program.statements, program.frameSize);
+                    break;
+                case "flat":
+                    new FlatInterpreter(interpreter).interpret(FlatAst.of(program));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown engine: " + engine);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
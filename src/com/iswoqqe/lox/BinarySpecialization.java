@@ -0,0 +1,164 @@
+package com.iswoqqe.lox;
+
+// Per-node behaviour of an Expr.Binary when the interpreter runs in specializing mode. A node starts
+// uninitialized, records the operand types it sees, then replaces itself with a form that only handles
+// those types. A specialized form that meets other types rewrites the node to the generic form for good.
+abstract class BinarySpecialization {
+    private static final int SPECIALIZE_AFTER = 4;
+
+    private static final int SEEN_NUMBERS = 1;
+    private static final int SEEN_STRINGS = 2;
+    private static final int SEEN_OTHER = 4;
+
+    static final BinarySpecialization GENERIC = new Generic();
+
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    static BinarySpecialization uninitialized() {
+        return new Uninitialized();
+    }
+
+    private static BinarySpecialization specialize(TokenType operator, int seen) {
+        if (seen == SEEN_NUMBERS) {
+            switch (operator) {
+                case PLUS: return new NumberAdd();
+                case MINUS: return new NumberSubtract();
+                case STAR: return new NumberMultiply();
+                case SLASH: return new NumberDivide();
+                case GREATER: return new NumberGreater();
+                case GREATER_EQUAL: return new NumberGreaterEqual();
+                case LESS: return new NumberLess();
+                case LESS_EQUAL: return new NumberLessEqual();
+            }
+        }
+        if (seen == SEEN_STRINGS && operator == TokenType.PLUS) {
+            return new StringConcat();
+        }
+        return GENERIC;
+    }
+
+    static Object despecialize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = GENERIC;
+        return GENERIC.execute(expr, left, right);
+    }
+
+    private static class Uninitialized extends BinarySpecialization {
+        private int executions = 0;
+        private int seen = 0;
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                seen |= SEEN_NUMBERS;
+            } else if (left instanceof String && right instanceof String) {
+                seen |= SEEN_STRINGS;
+            } else {
+                seen |= SEEN_OTHER;
+            }
+
+            executions += 1;
+            if (executions == SPECIALIZE_AFTER) {
+                expr.specialization = specialize(expr.operator.type, seen);
+            }
+
+            return GENERIC.execute(expr, left, right);
+        }
+    }
+
+    private static class Generic extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.binary(expr.operator, left, right);
+        }
+    }
+
+    private static class StringConcat extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof String && right instanceof String) {
+                return (String) left + right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberAdd extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left + (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberSubtract extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left - (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberMultiply extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left * (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberDivide extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left / (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberGreater extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left > (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberGreaterEqual extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left >= (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberLess extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left < (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static class NumberLessEqual extends BinarySpecialization {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left <= (double) right;
+            }
+            return despecialize(expr, left, right);
+        }
+    }
+}
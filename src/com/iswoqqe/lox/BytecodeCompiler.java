@@ -0,0 +1,343 @@
+package com.iswoqqe.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Prototype prototype;
+
+        FunctionState(FunctionState enclosing, Prototype prototype) {
+            this.enclosing = enclosing;
+            this.prototype = prototype;
+        }
+    }
+
+    private FunctionState current;
+    private boolean hadError = false;
+
+    // null if the statements go past a limit of the bytecode, which is reported through Lox.error
+    Prototype compile(List<Stmt> statements, int frameSize) {
+        current = new FunctionState(null, new Prototype(Collections.<Token>emptyList(), frameSize, new int[0],
+                new int[0], false));
+
+        for (Stmt stmt : statements) {
+            compileStmt(stmt);
+        }
+
+        emit(OpCode.NIL, null);
+        emit(OpCode.RETURN, null);
+        return hadError ? null : current.prototype;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compileExpr(stmt.expression);
+        emit(OpCode.POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compileExpr(stmt.expression);
+        emit(OpCode.PRINT, null);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        compileExpr(stmt.initializer);
+
+        if (stmt.resolved != null) {
+            emit(OpCode.SET_GLOBAL, stmt.name);
+            chunk().writeInt(constant(stmt.resolved), stmt.name);
+        } else {
+            emit(stmt.boxed ? OpCode.DEFINE_BOXED : OpCode.SET_LOCAL, stmt.name);
+            chunk().writeShort(checkShort(stmt.slot, stmt.name, "Too many local variables in function."), stmt.name);
+        }
+        emit(OpCode.POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            compileStmt(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compileExpr(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP, null);
+        compileStmt(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP, null);
+        compileStmt(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        compileExpr(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP, null);
+        compileStmt(stmt.statement);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP, null);
+        return null;
+    }
+
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return visitWhileStmt(stmt.loop);
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.expression != null) {
+            compileExpr(stmt.expression);
+        } else {
+            emit(OpCode.NIL, null);
+        }
+        emit(OpCode.RETURN, null);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        FunctionState enclosing = current;
+        current = new FunctionState(enclosing, new Prototype(expr.parameters, expr.frameSize, expr.captures,
+                expr.boxedParameters, expr.memoizable));
+
+        for (Stmt stmt : expr.body) {
+            compileStmt(stmt);
+        }
+
+        emit(OpCode.NIL, null);
+        emit(OpCode.RETURN, null);
+
+        Prototype prototype = current.prototype;
+        current = enclosing;
+
+        emit(OpCode.CLOSURE, null);
+        chunk().writeInt(constant(prototype), null);
+        return null;
+    }
+
+    @Override
+    public Void visitFusedExpr(Expr.Fused expr) {
+        compileExpr(expr.original);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileExpr(expr.callee);
+        // like the Interpreter, a bad callee is reported before any argument runs
+        emit(OpCode.CHECK_CALL, expr.paren);
+        chunk().write((byte) expr.arguments.size(), expr.paren);
+
+        for (Expr argument : expr.arguments) {
+            compileExpr(argument);
+        }
+
+        emit(expr.tail ? OpCode.TAIL_CALL : OpCode.CALL, expr.paren);
+        chunk().write((byte) expr.arguments.size(), expr.paren);
+        return null;
+    }
+
+    @Override
+    public Void visitOrExpr(Expr.Or expr) {
+        compileExpr(expr.left);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int endJump = emitJump(OpCode.JUMP);
+
+        patchJump(elseJump);
+        emit(OpCode.POP, null);
+        compileExpr(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAndExpr(Expr.And expr) {
+        compileExpr(expr.left);
+        int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+        emit(OpCode.POP, null);
+        compileExpr(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compileExpr(expr.value);
+        emitVariable(expr.resolved, expr.depth > 0 ? expr.capture : -1, expr.boxed, expr.slot, expr.name,
+                OpCode.SET_LOCAL, OpCode.SET_BOXED, OpCode.SET_CAPTURE, OpCode.SET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        emitVariable(expr.resolved, expr.depth > 0 ? expr.capture : -1, expr.boxed, expr.slot, expr.name,
+                OpCode.GET_LOCAL, OpCode.GET_BOXED, OpCode.GET_CAPTURE, OpCode.GET_GLOBAL);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compileExpr(expr.left);
+
+        if (expr.operator.type == TokenType.COMMA) {
+            emit(OpCode.POP, null);
+            compileExpr(expr.right);
+            return null;
+        }
+
+        compileExpr(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS: emit(OpCode.SUBTRACT, expr.operator); break;
+            case STAR: emit(OpCode.MULTIPLY, expr.operator); break;
+            case SLASH: emit(OpCode.DIVIDE, expr.operator); break;
+            case PLUS: emit(OpCode.ADD, expr.operator); break;
+            case GREATER: emit(OpCode.GREATER, expr.operator); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL, expr.operator); break;
+            case LESS: emit(OpCode.LESS, expr.operator); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL, expr.operator); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL, expr.operator); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL, expr.operator); break;
+            default:
+                // the tree walker evaluates unknown operators to nil
+                emit(OpCode.POP, null);
+                emit(OpCode.POP, null);
+                emit(OpCode.NIL, null);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compileExpr(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, null);
+        } else if (Boolean.TRUE.equals(expr.value)) {
+            emit(OpCode.TRUE, null);
+        } else if (Boolean.FALSE.equals(expr.value)) {
+            emit(OpCode.FALSE, null);
+        } else {
+            emit(OpCode.CONSTANT, null);
+            chunk().writeInt(constant(expr.value), null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compileExpr(expr.condition);
+        int falseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP, null);
+        compileExpr(expr.trueBranch);
+
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(falseJump);
+        emit(OpCode.POP, null);
+        compileExpr(expr.falseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compileExpr(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS: emit(OpCode.NEGATE, expr.operator); break;
+            case BANG: emit(OpCode.NOT, expr.operator); break;
+        }
+
+        return null;
+    }
+
+    private void compileExpr(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileStmt(Stmt stmt) {
+        if (stmt == null) {
+            return;
+        }
+        stmt.accept(this);
+    }
+
+    private Chunk chunk() {
+        return current.prototype.chunk;
+    }
+
+    private void emit(byte op, Token token) {
+        chunk().write(op, token);
+    }
+
+    private int emitJump(byte op) {
+        emit(op, null);
+        chunk().writeInt(-1, null);
+        return chunk().count - 4;
+    }
+
+    private void patchJump(int offset) {
+        chunk().patchInt(offset, chunk().count - offset - 4);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP, null);
+        chunk().writeInt(chunk().count - loopStart + 4, null);
+    }
+
+    // capture is -1 unless the variable is captured from an enclosing function
+    private void emitVariable(Variable global, int capture, boolean boxed, int slot, Token name,
+                              byte localOp, byte boxedOp, byte captureOp, byte globalOp) {
+        if (global != null) {
+            emit(globalOp, name);
+            chunk().writeInt(constant(global), name);
+        } else if (capture >= 0) {
+            emit(captureOp, name);
+            chunk().writeShort(checkShort(capture, name, "Too many captured variables in function."), name);
+        } else {
+            emit(boxed ? boxedOp : localOp, name);
+            chunk().writeShort(checkShort(slot, name, "Too many local variables in function."), name);
+        }
+    }
+
+    private int constant(Object value) {
+        return chunk().addConstant(value);
+    }
+
+    // Slots have u16 operands, constants and jumps have room for any chunk. Only the first slot past the limit
+    // is reported, the ones after it would repeat the error.
+    private int checkShort(int value, Token token, String message) {
+        if (value > 0xffff && !hadError) {
+            Lox.error(token, message);
+            hadError = true;
+        }
+        return value;
+    }
+}
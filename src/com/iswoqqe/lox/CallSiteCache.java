@@ -0,0 +1,55 @@
+package com.iswoqqe.lox;
+
+import java.util.Arrays;
+
+// Inline cache of an Expr.Call node. Remembers up to POLYMORPHIC_LIMIT callees that already passed the
+// callable and arity checks at this site; once more distinct callees show up the site is treated as
+// megamorphic and always takes the checked path. The hit and miss counts are printed per site by
+// Benchmark --call-sites.
+class CallSiteCache {
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    private final Callable[] callees = new Callable[POLYMORPHIC_LIMIT];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    // returns the callee if it was validated at this site before, null otherwise
+    Callable lookup(Object callee) {
+        if (!megamorphic) {
+            for (int i = 0; i < size; ++i) {
+                if (callees[i] == callee) {
+                    hits += 1;
+                    return callees[i];
+                }
+            }
+        }
+
+        misses += 1;
+        return null;
+    }
+
+    void add(Callable callee) {
+        if (size < POLYMORPHIC_LIMIT) {
+            callees[size++] = callee;
+        } else if (!megamorphic) {
+            megamorphic = true;
+            Arrays.fill(callees, null);
+            size = 0;
+        }
+    }
+
+    boolean isMegamorphic() {
+        return megamorphic;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
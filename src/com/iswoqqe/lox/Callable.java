@@ -1,8 +1,33 @@
 package com.iswoqqe.lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface Callable {
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+
+    // Fixed arity entry points, used by call sites with up to four arguments so no argument list has to be
+    // allocated. Implementations override the ones matching their arity.
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a0) {
+        return call(interpreter, Collections.singletonList(a0));
+    }
+
+    default Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return call(interpreter, Arrays.asList(a0, a1));
+    }
+
+    default Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return call(interpreter, Arrays.asList(a0, a1, a2));
+    }
+
+    default Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        return call(interpreter, Arrays.asList(a0, a1, a2, a3));
+    }
 }
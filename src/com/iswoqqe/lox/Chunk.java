@@ -0,0 +1,68 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[64];
+    // token of the instruction starting at each offset, used for runtime error positions
+    Token[] tokens = new Token[64];
+    int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private Object[] constantArray = null;
+    // index of each constant, numbers and strings are shared by value, everything else by identity
+    private final Map<Object, Integer> values = new HashMap<>();
+    private final Map<Object, Integer> objects = new IdentityHashMap<>();
+
+    void write(byte b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = b;
+        tokens[count] = token;
+        count += 1;
+    }
+
+    void writeShort(int value, Token token) {
+        write((byte) ((value >> 8) & 0xff), token);
+        write((byte) (value & 0xff), token);
+    }
+
+    void writeInt(int value, Token token) {
+        writeShort(value >>> 16, token);
+        writeShort(value & 0xffff, token);
+    }
+
+    void patchInt(int offset, int value) {
+        code[offset] = (byte) ((value >> 24) & 0xff);
+        code[offset + 1] = (byte) ((value >> 16) & 0xff);
+        code[offset + 2] = (byte) ((value >> 8) & 0xff);
+        code[offset + 3] = (byte) (value & 0xff);
+    }
+
+    int addConstant(Object value) {
+        Map<Object, Integer> index = value instanceof Double || value instanceof String ? values : objects;
+        Integer known = index.get(value);
+
+        if (known != null) {
+            return known;
+        }
+
+        constants.add(value);
+        constantArray = null;
+        index.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    Object[] constants() {
+        if (constantArray == null) {
+            constantArray = constants.toArray();
+        }
+        return constantArray;
+    }
+}
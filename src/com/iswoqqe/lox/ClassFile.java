@@ -0,0 +1,322 @@
+package com.iswoqqe.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal class file writer for the JIT. Emits version 49 class files so no stack map frames are needed.
+class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int DUP_X2 = 0x5b;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    static class Code {
+        private final ClassFile classFile;
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        Code(ClassFile classFile) {
+            this.classFile = classFile;
+        }
+
+        int position() {
+            return length;
+        }
+
+        int stackDepth() {
+            return stack;
+        }
+
+        // for code following an unconditional jump, where the depth is that of the jump target
+        void setStackDepth(int depth) {
+            stack = depth;
+        }
+
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                u2(value);
+            } else {
+                throw new IllegalArgumentException("Integer constant out of range.");
+            }
+        }
+
+        void local(int opcode, int index) {
+            maxLocals = Math.max(maxLocals, index + 1);
+            if (index > 0xff) {
+                u1(WIDE);
+                op(opcode, opcode == ALOAD ? 1 : -1);
+                u2(index);
+            } else {
+                op(opcode, opcode == ALOAD ? 1 : -1);
+                u1(index);
+            }
+        }
+
+        void invokestatic(String owner, String name, String descriptor) {
+            op(INVOKESTATIC, stackEffect(descriptor));
+            u2(classFile.methodRef(owner, name, descriptor));
+        }
+
+        void invokespecial(String owner, String name, String descriptor) {
+            op(INVOKESPECIAL, stackEffect(descriptor) - 1);
+            u2(classFile.methodRef(owner, name, descriptor));
+        }
+
+        void getstatic(String owner, String name, String descriptor) {
+            op(GETSTATIC, 1);
+            u2(classFile.fieldRef(owner, name, descriptor));
+        }
+
+        void getfield(String owner, String name, String descriptor) {
+            op(GETFIELD, 0);
+            u2(classFile.fieldRef(owner, name, descriptor));
+        }
+
+        void typeOp(int opcode, String internalName) {
+            op(opcode, 0);
+            u2(classFile.classRef(internalName));
+        }
+
+        // returns the position to hand to patchJump once the target is known
+        int jump(int opcode) {
+            int at = length;
+            op(opcode, opcode == GOTO ? 0 : -1);
+            u2(0);
+            return at;
+        }
+
+        void patchJump(int at, int target) {
+            int offset = target - at;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Jump offset out of range.");
+            }
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+
+        void jumpTo(int opcode, int target) {
+            patchJump(jump(opcode), target);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = java.util.Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private static int stackEffect(String descriptor) {
+            int effect = 0;
+            int i = 1;
+
+            while (descriptor.charAt(i) != ')') {
+                effect -= 1;
+                while (descriptor.charAt(i) == '[') {
+                    i += 1;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i += 1;
+            }
+
+            return descriptor.charAt(i + 1) == 'V' ? effect : effect + 1;
+        }
+    }
+
+    private static class Method {
+        final int access;
+        final int name;
+        final int descriptor;
+        final Code code;
+
+        Method(int access, int name, int descriptor, Code code) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+    private int poolCount = 1;
+    private final List<Method> methods = new ArrayList<>();
+
+    Code newCode() {
+        return new Code(this);
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        if (code.length > 0xffff) {
+            throw new IllegalStateException("Method code too large.");
+        }
+        methods.add(new Method(access, utf8(name), utf8(descriptor), code));
+    }
+
+    byte[] toByteArray(int access, String thisClass, String superClass) {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        int codeName = utf8("Code");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for (Method method : methods) {
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1);
+
+                out.writeShort(codeName);
+                out.writeInt(12 + method.code.length);
+                out.writeShort(method.code.maxStack);
+                out.writeShort(method.code.maxLocals);
+                out.writeInt(method.code.length);
+                out.write(method.code.bytes, 0, method.code.length);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+
+            out.writeShort(0); // class attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry(key);
+    }
+
+    int classRef(String internalName) {
+        return reference("C" + internalName, CONSTANT_CLASS, utf8(internalName), -1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return reference("M" + owner + "." + name + descriptor, CONSTANT_METHODREF,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return reference("F" + owner + "." + name + descriptor, CONSTANT_FIELDREF,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return reference("N" + name + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    }
+
+    private int reference(String key, int tag, int first, int second) {
+        Integer index = poolEntries.get(key);
+        if (index != null) {
+            return index;
+        }
+
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if (second >= 0) {
+                pool.writeShort(second);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addEntry(key);
+    }
+
+    private int addEntry(String key) {
+        if (poolCount > 0xffff) {
+            throw new IllegalStateException("Constant pool too large.");
+        }
+        poolEntries.put(key, poolCount);
+        return poolCount++;
+    }
+}
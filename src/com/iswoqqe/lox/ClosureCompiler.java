@@ -0,0 +1,534 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns the resolved AST into a tree of Java lambdas. Operators and variable locations are picked once
+// here, so running a node is a single interface call with no visitor dispatch.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode> {
+    interface ExprNode {
+        Object eval(Object[] frame);
+    }
+
+    // returns Interpreter.NORMAL, or the returned value when a return statement ran
+    interface StmtNode {
+        Object exec(Object[] frame);
+    }
+
+    // Value of a call in tail position whose callee is a compiled function. It is returned instead of making the
+    // call, and CompiledFunction.invoke runs it in place of the returning function.
+    static final class TailCall {
+        final CompiledFunction function;
+        final Object[] frame;
+
+        TailCall(CompiledFunction function, Object[] frame) {
+            this.function = function;
+            this.frame = frame;
+        }
+    }
+
+    private final Interpreter interpreter;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(List<Stmt> statements, int frameSize) {
+        StmtNode[] program = compileAll(statements);
+        Object[] frame = new Object[frameSize];
+
+        try {
+            for (StmtNode node : program) {
+                // a return at top level ends the script
+                if (node.exec(frame) != Interpreter.NORMAL) {
+                    break;
+                }
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return frame -> {
+            expression.eval(frame);
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return frame -> {
+            System.out.println(Interpreter.stringify(expression.eval(frame)));
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode initializer = compile(stmt.initializer);
+
+        if (stmt.resolved != null) {
+            Variable global = stmt.resolved;
+            return frame -> {
+                global.value = initializer.eval(frame);
+                return Interpreter.NORMAL;
+            };
+        }
+
+        int slot = stmt.slot;
+
+        if (stmt.boxed) {
+            return frame -> {
+                frame[slot] = new Variable(initializer.eval(frame));
+                return Interpreter.NORMAL;
+            };
+        }
+
+        return frame -> {
+            frame[slot] = initializer.eval(frame);
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        StmtNode[] statements = compileAll(stmt.statements);
+        return frame -> {
+            for (StmtNode statement : statements) {
+                Object completion = statement.exec(frame);
+
+                if (completion != Interpreter.NORMAL) {
+                    return completion;
+                }
+            }
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return frame -> Interpreter.isTruthy(condition.eval(frame)) ? thenBranch.exec(frame) : Interpreter.NORMAL;
+        }
+
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return frame -> Interpreter.isTruthy(condition.eval(frame)) ? thenBranch.exec(frame) : elseBranch.exec(frame);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = compile(stmt.statement);
+        return frame -> {
+            while (Interpreter.isTruthy(condition.eval(frame))) {
+                Object completion = body.exec(frame);
+
+                if (completion != Interpreter.NORMAL) {
+                    return completion;
+                }
+            }
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        StmtNode loop = visitWhileStmt(stmt.loop);
+        ExprNode counter = compile(stmt.counter);
+        ExprNode limit = compile(stmt.limit);
+        StmtNode body = compile(stmt.body);
+        TokenType type = stmt.condition.operator.type;
+        double step = stmt.step;
+        Variable global = stmt.counter.resolved;
+        int slot = stmt.counter.slot;
+
+        return frame -> {
+            Object start = counter.eval(frame);
+            Object end = limit.eval(frame);
+
+            // the plain loop raises the error
+            if (!(start instanceof Double) || !(end instanceof Double)) {
+                return loop.exec(frame);
+            }
+
+            double i = (double) start;
+            double n = (double) end;
+
+            while (Interpreter.counts(type, i, n)) {
+                Object completion = body.exec(frame);
+
+                if (completion != Interpreter.NORMAL) {
+                    return completion;
+                }
+
+                i += step;
+
+                if (global != null) {
+                    global.value = Interpreter.box(i);
+                } else {
+                    frame[slot] = Interpreter.box(i);
+                }
+            }
+            return Interpreter.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.expression == null) {
+            return frame -> null;
+        }
+
+        ExprNode expression = compile(stmt.expression);
+        return frame -> expression.eval(frame);
+    }
+
+    @Override
+    public ExprNode visitFunctionExpr(Expr.Function expr) {
+        StmtNode[] body = compileAll(expr.body);
+        int[] captures = expr.captures;
+        boolean memoizable = expr.memoizable;
+        return frame -> interpreter.closure(new CompiledFunction(expr, body, Function.capture(captures, frame)),
+                memoizable);
+    }
+
+    // the original's lambdas already run without visitor dispatch
+    @Override
+    public ExprNode visitFusedExpr(Expr.Fused expr) {
+        return compile(expr.original);
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode callee = compile(expr.callee);
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (expr.tail) {
+            return frame -> {
+                Callable function = callable(callee.eval(frame), arguments.length, paren);
+
+                if (!(function instanceof CompiledFunction)) {
+                    return call(function, arguments, frame, paren);
+                }
+
+                CompiledFunction compiled = (CompiledFunction) function;
+                Object[] calleeFrame = compiled.newFrame();
+                for (int i = 0; i < arguments.length; ++i) {
+                    calleeFrame[i + 1] = arguments[i].eval(frame);
+                }
+                return new TailCall(compiled, calleeFrame);
+            };
+        }
+
+        // The callee is checked before the arguments are evaluated, as in the interpreter. An error of a native
+        // is raised at the paren, see Interpreter.NativeError.
+        switch (arguments.length) {
+            case 0:
+                return frame -> {
+                    Callable function = callable(callee.eval(frame), 0, paren);
+                    try {
+                        return function.call0(interpreter);
+                    } catch (Interpreter.NativeError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            case 1: {
+                ExprNode a0 = arguments[0];
+                return frame -> {
+                    Callable function = callable(callee.eval(frame), 1, paren);
+                    try {
+                        return function.call1(interpreter, a0.eval(frame));
+                    } catch (Interpreter.NativeError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+            case 2: {
+                ExprNode a0 = arguments[0];
+                ExprNode a1 = arguments[1];
+                return frame -> {
+                    Callable function = callable(callee.eval(frame), 2, paren);
+                    try {
+                        return function.call2(interpreter, a0.eval(frame), a1.eval(frame));
+                    } catch (Interpreter.NativeError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+            case 3: {
+                ExprNode a0 = arguments[0];
+                ExprNode a1 = arguments[1];
+                ExprNode a2 = arguments[2];
+                return frame -> {
+                    Callable function = callable(callee.eval(frame), 3, paren);
+                    try {
+                        return function.call3(interpreter, a0.eval(frame), a1.eval(frame), a2.eval(frame));
+                    } catch (Interpreter.NativeError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+            case 4: {
+                ExprNode a0 = arguments[0];
+                ExprNode a1 = arguments[1];
+                ExprNode a2 = arguments[2];
+                ExprNode a3 = arguments[3];
+                return frame -> {
+                    Callable function = callable(callee.eval(frame), 4, paren);
+                    try {
+                        return function.call4(interpreter, a0.eval(frame), a1.eval(frame), a2.eval(frame),
+                                a3.eval(frame));
+                    } catch (Interpreter.NativeError error) {
+                        throw new RuntimeError(paren, error.getMessage());
+                    }
+                };
+            }
+        }
+
+        return frame -> call(callable(callee.eval(frame), arguments.length, paren), arguments, frame, paren);
+    }
+
+    private Object call(Callable function, ExprNode[] arguments, Object[] frame, Token paren) {
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (ExprNode argument : arguments) {
+            values.add(argument.eval(frame));
+        }
+
+        try {
+            return function.call(interpreter, values);
+        } catch (Interpreter.NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+
+    @Override
+    public ExprNode visitOrExpr(Expr.Or expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        return frame -> {
+            Object val = left.eval(frame);
+            return Interpreter.isTruthy(val) ? val : right.eval(frame);
+        };
+    }
+
+    @Override
+    public ExprNode visitAndExpr(Expr.And expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        return frame -> {
+            Object val = left.eval(frame);
+            return !Interpreter.isTruthy(val) ? val : right.eval(frame);
+        };
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+
+        if (expr.resolved != null) {
+            Variable global = expr.resolved;
+            return frame -> global.value = value.eval(frame);
+        }
+
+        int slot = expr.slot;
+
+        if (expr.depth > 0) {
+            int capture = expr.capture;
+            return frame -> ((Variable[]) frame[0])[capture].value = value.eval(frame);
+        } else if (expr.boxed) {
+            return frame -> ((Variable) frame[slot]).value = value.eval(frame);
+        }
+        return frame -> frame[slot] = value.eval(frame);
+    }
+
+    @Override
+    public ExprNode visitVarExpr(Expr.Var expr) {
+        if (expr.resolved != null) {
+            Variable global = expr.resolved;
+            return frame -> global.value;
+        }
+
+        int slot = expr.slot;
+
+        if (expr.depth > 0) {
+            int capture = expr.capture;
+            return frame -> ((Variable[]) frame[0])[capture].value;
+        } else if (expr.boxed) {
+            return frame -> ((Variable) frame[slot]).value;
+        }
+        return frame -> frame[slot];
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case COMMA:
+                return frame -> {
+                    left.eval(frame);
+                    return right.eval(frame);
+                };
+            case MINUS:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l - (double) r;
+                };
+            case STAR:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l * (double) r;
+                };
+            case SLASH:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l / (double) r;
+                };
+            case PLUS:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double) l + (double) r;
+                    }
+                    if (l instanceof String && r instanceof String) {
+                        return (String) l + r;
+                    }
+                    throw new RuntimeError(operator, "Operands must be numbers or strings.");
+                };
+            case GREATER:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l > (double) r;
+                };
+            case GREATER_EQUAL:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l >= (double) r;
+                };
+            case LESS:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l < (double) r;
+                };
+            case LESS_EQUAL:
+                return frame -> {
+                    Object l = left.eval(frame);
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumbers(operator, l, r);
+                    return (double) l <= (double) r;
+                };
+            case BANG_EQUAL:
+                return frame -> !Interpreter.isEqual(left.eval(frame), right.eval(frame));
+            case EQUAL_EQUAL:
+                return frame -> Interpreter.isEqual(left.eval(frame), right.eval(frame));
+        }
+
+        return frame -> {
+            left.eval(frame);
+            right.eval(frame);
+            return null;
+        };
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return frame -> value;
+    }
+
+    @Override
+    public ExprNode visitTernaryExpr(Expr.Ternary expr) {
+        ExprNode condition = compile(expr.condition);
+        ExprNode trueBranch = compile(expr.trueBranch);
+        ExprNode falseBranch = compile(expr.falseBranch);
+        return frame -> Interpreter.isTruthy(condition.eval(frame)) ? trueBranch.eval(frame) : falseBranch.eval(frame);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case MINUS:
+                return frame -> {
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumber(operator, r);
+                    return -(double) r;
+                };
+            case BANG:
+                return frame -> {
+                    Object r = right.eval(frame);
+                    Interpreter.checkNumber(operator, r);
+                    return !Interpreter.isTruthy(r);
+                };
+        }
+
+        return frame -> {
+            right.eval(frame);
+            return null;
+        };
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private StmtNode[] compileAll(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private static Callable callable(Object value, int argumentCount, Token paren) {
+        if (!(value instanceof Callable)) {
+            throw new RuntimeError(paren, "Can only call functions.");
+        }
+
+        Callable function = (Callable) value;
+
+        if (function.arity() != argumentCount) {
+            throw new RuntimeError(paren,
+                    "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+        }
+
+        return function;
+    }
+}
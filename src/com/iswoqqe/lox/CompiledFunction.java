@@ -0,0 +1,127 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+class CompiledFunction implements Callable {
+    private final Expr.Function definition;
+    private final ClosureCompiler.StmtNode[] body;
+    private final Variable[] captures;
+
+    CompiledFunction(Expr.Function definition, ClosureCompiler.StmtNode[] body, Variable[] captures) {
+        this.definition = definition;
+        this.body = body;
+        this.captures = captures;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] frame = newFrame();
+
+        for (int i = 0; i < arguments.size(); ++i) {
+            frame[i + 1] = arguments.get(i);
+        }
+
+        return invoke(frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke(newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        return invoke(frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        return invoke(frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        return invoke(frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        frame[4] = a3;
+        return invoke(frame);
+    }
+
+    Object[] newFrame() {
+        Object[] frame = new Object[definition.frameSize];
+        frame[0] = captures;
+        return frame;
+    }
+
+    private Object invoke(Object[] frame) {
+        CompiledFunction function = this;
+
+        // tail calls loop here instead of nesting
+        while (true) {
+            Object completion = function.execute(frame);
+
+            if (!(completion instanceof ClosureCompiler.TailCall)) {
+                return completion;
+            }
+
+            ClosureCompiler.TailCall call = (ClosureCompiler.TailCall) completion;
+            function = call.function;
+            frame = call.frame;
+        }
+    }
+
+    private Object execute(Object[] frame) {
+        Function.boxParameters(definition.boxedParameters, frame);
+
+        for (ClosureCompiler.StmtNode statement : body) {
+            Object completion = statement.exec(frame);
+
+            if (completion != Interpreter.NORMAL) {
+                return completion;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        return definition.parameters.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<fn(");
+
+        boolean first = true;
+
+        for (Token param : definition.parameters) {
+            if (!first) {
+                builder.append(", ");
+            }
+            builder.append(param.lexeme);
+            first = false;
+        }
+
+        builder.append(")>");
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,247 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+// Rewrites a resolved tree so that constant subexpressions become literals, groupings disappear and
+// branches and loops with constant conditions are pruned. An operation is only folded if it cannot fail,
+// so runtime errors are still raised by the original node and token.
+//
+// Identities are only applied to operands that always evaluate to a number, as any other value has to reach
+// the operator to raise its error, and only where the result is the same double: x * 1, x / 1, 1 * x, x - 0
+// and - - x. x + 0 is left alone since -0 + 0 is 0, and x * 0 since x can be infinite or NaN.
+class ConstantFolder extends AstRewriter {
+    List<Stmt> fold(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // true if the expression evaluates to a number whenever it does not fail
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return value(expr) instanceof Double;
+        }
+        if (expr instanceof Expr.Binary) {
+            TokenType type = ((Expr.Binary) expr).operator.type;
+            return type == TokenType.MINUS || type == TokenType.STAR || type == TokenType.SLASH;
+        }
+        return expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+
+    private static boolean isNumber(Expr expr, double number) {
+        return isConstant(expr) && Double.valueOf(number).equals(value(expr));
+    }
+
+    // the operand the operation leaves unchanged, or null
+    private static Expr identity(Expr left, TokenType operator, Expr right) {
+        switch (operator) {
+            case STAR:
+                if (isNumber(left, 1) && isNumeric(right)) {
+                    return right;
+                }
+                return isNumber(right, 1) && isNumeric(left) ? left : null;
+            case SLASH:
+                return isNumber(right, 1) && isNumeric(left) ? left : null;
+            case MINUS:
+                // only positive zero, x - -0 is x + 0
+                return isNumber(right, 0) && isNumeric(left) ? left : null;
+            default:
+                return null;
+        }
+    }
+
+    // null unless both operands are numbers
+    private static Expr arithmetic(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return new Expr.Literal(Interpreter.binary(operator, a, b));
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA && isConstant(left)) {
+            return right;
+        }
+
+        if (isConstant(left) && isConstant(right)) {
+            Object a = value(left);
+            Object b = value(right);
+
+            Expr folded = null;
+
+            switch (expr.operator.type) {
+                case PLUS:
+                    if (a instanceof String && b instanceof String) {
+                        folded = new Expr.Literal((String) a + b);
+                    } else {
+                        folded = arithmetic(expr.operator, a, b);
+                    }
+                    break;
+                case MINUS:
+                case STAR:
+                case SLASH:
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    folded = arithmetic(expr.operator, a, b);
+                    break;
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    folded = new Expr.Literal(Interpreter.binary(expr.operator, a, b));
+                    break;
+            }
+
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        Expr identity = identity(left, expr.operator.type, right);
+
+        if (identity != null) {
+            return identity;
+        }
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // only the parser needs them
+        return rewrite(expr.expression);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = rewrite(expr.condition);
+
+        if (isConstant(condition)) {
+            return Interpreter.isTruthy(value(condition)) ? rewrite(expr.trueBranch) : rewrite(expr.falseBranch);
+        }
+
+        Expr trueBranch = rewrite(expr.trueBranch);
+        Expr falseBranch = rewrite(expr.falseBranch);
+
+        if (condition == expr.condition && trueBranch == expr.trueBranch && falseBranch == expr.falseBranch) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, trueBranch, falseBranch);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+
+        // both operators fail unless the operand is a number, and ! of a number is always false
+        if (isConstant(right) && value(right) instanceof Double) {
+            switch (expr.operator.type) {
+                case MINUS:
+                    return new Expr.Literal(-(double) value(right));
+                case BANG:
+                    return new Expr.Literal(false);
+            }
+        }
+
+        if (expr.operator.type == TokenType.MINUS && right instanceof Expr.Unary
+                && ((Expr.Unary) right).operator.type == TokenType.MINUS && isNumeric(((Expr.Unary) right).right)) {
+            return ((Expr.Unary) right).right;
+        }
+
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitOrExpr(Expr.Or expr) {
+        Expr left = rewrite(expr.left);
+
+        if (isConstant(left)) {
+            return Interpreter.isTruthy(value(left)) ? left : rewrite(expr.right);
+        }
+
+        Expr right = rewrite(expr.right);
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Or(left, right);
+    }
+
+    @Override
+    public Expr visitAndExpr(Expr.And expr) {
+        Expr left = rewrite(expr.left);
+
+        if (isConstant(left)) {
+            return Interpreter.isTruthy(value(left)) ? rewrite(expr.right) : left;
+        }
+
+        Expr right = rewrite(expr.right);
+
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.And(left, right);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+
+        if (isConstant(expression)) {
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt block = super.visitBlockStmt(stmt);
+        return ((Stmt.Block) block).statements.isEmpty() ? null : block;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+
+        if (isConstant(condition)) {
+            return Interpreter.isTruthy(value(condition)) ? rewrite(stmt.thenBranch) : rewrite(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+
+        if (isConstant(condition) && !Interpreter.isTruthy(value(condition))) {
+            return null;
+        }
+
+        Stmt statement = branch(stmt.statement);
+
+        if (condition == stmt.condition && statement == stmt.statement) {
+            return stmt;
+        }
+        return new Stmt.While(condition, statement);
+    }
+}
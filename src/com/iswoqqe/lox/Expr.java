@@ -15,16 +15,42 @@ abstract class Expr {
         T visitOrExpr(Or expr);
         T visitAndExpr(And expr);
         T visitFunctionExpr(Function expr);
+        T visitFusedExpr(Fused expr);
     }
 
     abstract <T> T accept(Visitor<T> visitor);
 
-    static class Binary extends Expr {
+    // Node kinds, one per class below. The Interpreter can dispatch on the kind with a switch instead of calling
+    // accept, see Interpreter.setSwitchDispatch.
+    static final int BINARY = 0;
+    static final int CALL = 1;
+    static final int GROUPING = 2;
+    static final int LITERAL = 3;
+    static final int TERNARY = 4;
+    static final int UNARY = 5;
+    static final int VAR = 6;
+    static final int ASSIGN = 7;
+    static final int OR = 8;
+    static final int AND = 9;
+    static final int FUNCTION = 10;
+    static final int FUSED = 11;
+
+    final int kind;
+
+    // the node classes below are the only subclasses
+    private Expr(int kind) {
+        this.kind = kind;
+    }
+
+    static final class Binary extends Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        // rewritten by the interpreter in specializing mode
+        BinarySpecialization specialization = BinarySpecialization.uninitialized();
 
         Binary(Expr left, Token operator, Expr right) {
+            super(BINARY);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -36,12 +62,16 @@ abstract class Expr {
         }
     }
 
-    static class Call extends Expr {
+    static final class Call extends Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        final CallSiteCache cache = new CallSiteCache();
+        // set by the resolver when the call's value is directly returned from a function
+        boolean tail = false;
 
         Call(Expr callee, Token paren, List<Expr> arguments) {
+            super(CALL);
             this.callee = callee;
             this.paren = paren;
             this.arguments = arguments;
@@ -53,10 +83,11 @@ abstract class Expr {
         }
     }
 
-    static class Grouping extends Expr {
+    static final class Grouping extends Expr {
         final Expr expression;
 
         Grouping(Expr expression) {
+            super(GROUPING);
             this.expression = expression;
         }
 
@@ -66,10 +97,11 @@ abstract class Expr {
         }
     }
 
-    static class Literal extends Expr {
+    static final class Literal extends Expr {
         final Object value;
 
         Literal(Object value) {
+            super(LITERAL);
             this.value = value;
         }
 
@@ -79,12 +111,13 @@ abstract class Expr {
         }
     }
 
-    static class Ternary extends Expr {
+    static final class Ternary extends Expr {
         final Expr condition;
         final Expr trueBranch;
         final Expr falseBranch;
 
         Ternary(Expr condition, Expr trueBranch, Expr falseBranch) {
+            super(TERNARY);
             this.condition = condition;
             this.trueBranch = trueBranch;
             this.falseBranch = falseBranch;
@@ -96,11 +129,12 @@ abstract class Expr {
         }
     }
 
-    static class Unary extends Expr {
+    static final class Unary extends Expr {
         final Token operator;
         final Expr right;
 
         Unary(Token operator, Expr right) {
+            super(UNARY);
             this.operator = operator;
             this.right = right;
         }
@@ -111,11 +145,20 @@ abstract class Expr {
         }
     }
 
-    static class Var extends Expr {
+    static final class Var extends Expr {
         final Token name;
+        // global cell, null when the variable lives in a frame slot
         Variable resolved;
+        // number of functions out the variable is declared and its slot in that function's frame
+        int depth;
+        int slot;
+        // when depth > 0, index of the variable's box in the function's capture array
+        int capture;
+        // when depth == 0, true if closures capture the variable and its slot holds a Variable box
+        boolean boxed;
 
         Var(Token name, Variable resolved) {
+            super(VAR);
             this.name = name;
             this.resolved = resolved;
         }
@@ -126,12 +169,21 @@ abstract class Expr {
         }
     }
 
-    static class Assign extends Expr {
+    static final class Assign extends Expr {
         final Token name;
+        // global cell, null when the variable lives in a frame slot
         Variable resolved;
+        // number of functions out the variable is declared and its slot in that function's frame
+        int depth;
+        int slot;
+        // when depth > 0, index of the variable's box in the function's capture array
+        int capture;
+        // when depth == 0, true if closures capture the variable and its slot holds a Variable box
+        boolean boxed;
         final Expr value;
 
         Assign(Token name, Variable resolved, Expr value) {
+            super(ASSIGN);
             this.name = name;
             this.resolved = resolved;
             this.value = value;
@@ -143,11 +195,12 @@ abstract class Expr {
         }
     }
 
-    static class Or extends Expr {
+    static final class Or extends Expr {
         final Expr left;
         final Expr right;
 
         Or(Expr left, Expr right) {
+            super(OR);
             this.left = left;
             this.right = right;
         }
@@ -158,11 +211,12 @@ abstract class Expr {
         }
     }
 
-    static class And extends Expr {
+    static final class And extends Expr {
         final Expr left;
         final Expr right;
 
         And(Expr left, Expr right) {
+            super(AND);
             this.left = left;
             this.right = right;
         }
@@ -173,14 +227,27 @@ abstract class Expr {
         }
     }
 
-    static class Function extends Expr {
+    static final class Function extends Expr {
         final List<Token> parameters;
-        List<Variable> resolved;
         final List<Stmt> body;
-
-        Function(List<Token> parameters, List<Variable> resolved, List<Stmt> body) {
+        // slot 0 holds the capture array, parameters take slots 1..n, then locals
+        int frameSize;
+        // Where each captured box comes from when a closure is made: a slot of the creating frame, or for a
+        // negative entry c, box ~c of the creating function's own captures.
+        int[] captures = new int[0];
+        // parameter slots that closures capture, they are put in boxes on entry
+        int[] boxedParameters = new int[0];
+        // set by the resolver when the body only reads its arguments and locals and has no effects, see Memo
+        boolean memoizable;
+        // profile and compiled code of the JIT tier, see Jit
+        int invocations;
+        int backEdges;
+        JitCode jitCode;
+        boolean jitRejected;
+
+        Function(List<Token> parameters, List<Stmt> body) {
+            super(FUNCTION);
             this.parameters = parameters;
-            this.resolved = resolved;
             this.body = body;
         }
 
@@ -189,4 +256,31 @@ abstract class Expr {
             return visitor.visitFunctionExpr(this);
         }
     }
+
+    // A small tree the Interpreter runs in one step, see Superinstructions. The other engines run the original.
+    static final class Fused extends Expr {
+        final Superinstructions.Shape shape;
+        final Expr original;
+        // operands taken out of the original, which ones are set depends on the shape
+        final int slot;
+        final Variable resolved;
+        final Token operator;
+        final double constant;
+
+        Fused(Superinstructions.Shape shape, Expr original, int slot, Variable resolved, Token operator,
+                double constant) {
+            super(FUSED);
+            this.shape = shape;
+            this.original = original;
+            this.slot = slot;
+            this.resolved = resolved;
+            this.operator = operator;
+            this.constant = constant;
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitFusedExpr(this);
+        }
+    }
 }
@@ -0,0 +1,592 @@
+package com.iswoqqe.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A resolved program packed into int arrays. A node is its kind followed by its fields, children are the
+// indices of other nodes and NONE marks a missing one. Nodes are laid out parent first, so walking the tree
+// mostly moves forward through one array. Tokens are four ints each, lexemes, literal values and global
+// cells live in side pools, and nothing is made into an object until someone asks for it.
+//
+// The access of a local says how its slot is used: LOCAL slots hold the value, BOXED slots a Variable holding
+// it, and for CAPTURED the slot is an index in the function's capture array.
+//
+// Layouts, offsets from the node:
+//   BINARY      operator left right
+//   OR, AND     -        left right
+//   UNARY       operator operand
+//   GROUPING    expression
+//   LITERAL     constant
+//   TERNARY     condition thenBranch elseBranch
+//   CALL        paren tail callee argumentCount arguments...
+//   VAR         name global access slot
+//   ASSIGN      name global access slot value
+//   FUNCTION    frameSize body parameterCount captures boxedParameters memoizable parameters...
+//   EXPRESSION  expression
+//   PRINT       expression
+//   VAR_STMT    name global access slot value
+//   BLOCK       statementCount statements...
+//   IF          condition thenBranch elseBranch
+//   WHILE       condition body
+//   RETURN      expression
+final class FlatAst {
+    // Walks nodes by index. Mirrors Expr.Visitor and Stmt.Visitor, so one class can implement both.
+    interface Visitor<T> {
+        T visitBinaryExpr(int node);
+        T visitCallExpr(int node);
+        T visitGroupingExpr(int node);
+        T visitLiteralExpr(int node);
+        T visitTernaryExpr(int node);
+        T visitUnaryExpr(int node);
+        T visitVarExpr(int node);
+        T visitAssignExpr(int node);
+        T visitOrExpr(int node);
+        T visitAndExpr(int node);
+        T visitFunctionExpr(int node);
+        T visitExpressionStmt(int node);
+        T visitPrintStmt(int node);
+        T visitVarStmt(int node);
+        T visitBlockStmt(int node);
+        T visitIfStmt(int node);
+        T visitWhileStmt(int node);
+        T visitReturnStmt(int node);
+    }
+
+    static final int NONE = -1;
+
+    static final int LOCAL = 0;
+    static final int BOXED = 1;
+    static final int CAPTURED = 2;
+
+    static final int BINARY = 0;
+    static final int CALL = 1;
+    static final int GROUPING = 2;
+    static final int LITERAL = 3;
+    static final int TERNARY = 4;
+    static final int UNARY = 5;
+    static final int VAR = 6;
+    static final int ASSIGN = 7;
+    static final int OR = 8;
+    static final int AND = 9;
+    static final int FUNCTION = 10;
+    static final int EXPRESSION = 11;
+    static final int PRINT = 12;
+    static final int VAR_STMT = 13;
+    static final int BLOCK = 14;
+    static final int IF = 15;
+    static final int WHILE = 16;
+    static final int RETURN = 17;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final int[] nodes;
+    // type, lexeme, line and column of each token
+    private final int[] tokens;
+    private final String[] lexemes;
+    // literal values and global cells
+    private final Object[] constants;
+    private final int root;
+    private final int frameSize;
+
+    private FlatAst(int[] nodes, int[] tokens, String[] lexemes, Object[] constants, int root, int frameSize) {
+        this.nodes = nodes;
+        this.tokens = tokens;
+        this.lexemes = lexemes;
+        this.constants = constants;
+        this.root = root;
+        this.frameSize = frameSize;
+    }
+
+    static FlatAst of(Program program) {
+        Builder builder = new Builder();
+        int root = builder.block(program.statements);
+        return builder.build(root, program.frameSize);
+    }
+
+    <T> T accept(int node, Visitor<T> visitor) {
+        switch (nodes[node]) {
+            case BINARY: return visitor.visitBinaryExpr(node);
+            case CALL: return visitor.visitCallExpr(node);
+            case GROUPING: return visitor.visitGroupingExpr(node);
+            case LITERAL: return visitor.visitLiteralExpr(node);
+            case TERNARY: return visitor.visitTernaryExpr(node);
+            case UNARY: return visitor.visitUnaryExpr(node);
+            case VAR: return visitor.visitVarExpr(node);
+            case ASSIGN: return visitor.visitAssignExpr(node);
+            case OR: return visitor.visitOrExpr(node);
+            case AND: return visitor.visitAndExpr(node);
+            case FUNCTION: return visitor.visitFunctionExpr(node);
+            case EXPRESSION: return visitor.visitExpressionStmt(node);
+            case PRINT: return visitor.visitPrintStmt(node);
+            case VAR_STMT: return visitor.visitVarStmt(node);
+            case BLOCK: return visitor.visitBlockStmt(node);
+            case IF: return visitor.visitIfStmt(node);
+            case WHILE: return visitor.visitWhileStmt(node);
+            case RETURN: return visitor.visitReturnStmt(node);
+            default: throw new IllegalStateException("Unknown node kind " + nodes[node] + ".");
+        }
+    }
+
+    // block holding the top level statements
+    int root() {
+        return root;
+    }
+
+    // size of the frame holding locals of top level blocks
+    int frameSize() {
+        return frameSize;
+    }
+
+    int kind(int node) {
+        return nodes[node];
+    }
+
+    // nodes
+
+    int operator(int node) {
+        return nodes[node + 1];
+    }
+
+    int left(int node) {
+        return nodes[node + 2];
+    }
+
+    int right(int node) {
+        return nodes[node + 3];
+    }
+
+    int operand(int node) {
+        return nodes[node + 2];
+    }
+
+    int expression(int node) {
+        return nodes[node + 1];
+    }
+
+    Object literal(int node) {
+        return constants[nodes[node + 1]];
+    }
+
+    int condition(int node) {
+        return nodes[node + 1];
+    }
+
+    int thenBranch(int node) {
+        return nodes[node + 2];
+    }
+
+    int elseBranch(int node) {
+        return nodes[node + 3];
+    }
+
+    int body(int node) {
+        return nodes[node + 2];
+    }
+
+    int paren(int node) {
+        return nodes[node + 1];
+    }
+
+    boolean isTail(int node) {
+        return nodes[node + 2] != 0;
+    }
+
+    int callee(int node) {
+        return nodes[node + 3];
+    }
+
+    int argumentCount(int node) {
+        return nodes[node + 4];
+    }
+
+    int argument(int node, int i) {
+        return nodes[node + 5 + i];
+    }
+
+    int name(int node) {
+        return nodes[node + 1];
+    }
+
+    // global cell, null when the variable lives in a frame slot
+    Variable global(int node) {
+        int constant = nodes[node + 2];
+        return constant == NONE ? null : (Variable) constants[constant];
+    }
+
+    int access(int node) {
+        return nodes[node + 3];
+    }
+
+    int slot(int node) {
+        return nodes[node + 4];
+    }
+
+    // assigned value or initializer
+    int value(int node) {
+        return nodes[node + 5];
+    }
+
+    int frameSize(int node) {
+        return nodes[node + 1];
+    }
+
+    int parameterCount(int node) {
+        return nodes[node + 3];
+    }
+
+    // see Expr.Function
+    int[] captures(int node) {
+        return (int[]) constants[nodes[node + 4]];
+    }
+
+    int[] boxedParameters(int node) {
+        return (int[]) constants[nodes[node + 5]];
+    }
+
+    boolean memoizable(int node) {
+        return nodes[node + 6] != 0;
+    }
+
+    int parameter(int node, int i) {
+        return nodes[node + 7 + i];
+    }
+
+    int statementCount(int node) {
+        return nodes[node + 1];
+    }
+
+    int statement(int node, int i) {
+        return nodes[node + 2 + i];
+    }
+
+    // tokens
+
+    TokenType tokenType(int token) {
+        return TYPES[tokens[token * 4]];
+    }
+
+    String lexeme(int token) {
+        return lexemes[tokens[token * 4 + 1]];
+    }
+
+    Token token(int token) {
+        TokenType type = tokenType(token);
+        String lexeme = lexeme(token);
+        int symbol = type == TokenType.IDENTIFIER ? Symbols.intern(lexeme) : -1;
+        return new Token(type, lexeme, null, tokens[token * 4 + 2], tokens[token * 4 + 3], symbol);
+    }
+
+    private static class Builder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private int[] nodes = new int[1024];
+        private int size = 0;
+        private int[] tokens = new int[1024];
+        private int tokenCount = 0;
+        private final Map<String, Integer> lexemes = new HashMap<>();
+        private final Map<Object, Integer> constants = new HashMap<>();
+        // global cells are compared by identity, not by value
+        private final Map<Variable, Integer> globals = new IdentityHashMap<>();
+        private Object[] constantPool = new Object[64];
+        private int constantCount = 0;
+
+        FlatAst build(int root, int frameSize) {
+            String[] lexemePool = new String[lexemes.size()];
+            for (Map.Entry<String, Integer> entry : lexemes.entrySet()) {
+                lexemePool[entry.getValue()] = entry.getKey();
+            }
+
+            return new FlatAst(Arrays.copyOf(nodes, size), Arrays.copyOf(tokens, tokenCount * 4), lexemePool,
+                    Arrays.copyOf(constantPool, constantCount), root, frameSize);
+        }
+
+        // fields are filled in after allocating, so children come after their parent
+        private int allocate(int kind, int fields) {
+            if (size + fields + 1 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(size + fields + 1, nodes.length * 2));
+            }
+
+            int node = size;
+            nodes[node] = kind;
+            size += fields + 1;
+            return node;
+        }
+
+        private int expr(Expr expr) {
+            return expr == null ? NONE : expr.accept(this);
+        }
+
+        private int stmt(Stmt stmt) {
+            return stmt == null ? NONE : stmt.accept(this);
+        }
+
+        int block(List<Stmt> statements) {
+            int node = allocate(BLOCK, statements.size() + 1);
+            nodes[node + 1] = statements.size();
+
+            for (int i = 0; i < statements.size(); ++i) {
+                int statement = stmt(statements.get(i));
+                nodes[node + 2 + i] = statement;
+            }
+            return node;
+        }
+
+        private int token(Token token) {
+            if ((tokenCount + 1) * 4 > tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+
+            Integer lexeme = lexemes.get(token.lexeme);
+            if (lexeme == null) {
+                lexeme = lexemes.size();
+                lexemes.put(token.lexeme, lexeme);
+            }
+
+            int index = tokenCount * 4;
+            tokens[index] = token.type.ordinal();
+            tokens[index + 1] = lexeme;
+            tokens[index + 2] = token.line;
+            tokens[index + 3] = token.column;
+            return tokenCount++;
+        }
+
+        private int constant(Object value) {
+            Integer index = constants.get(value);
+
+            if (index == null) {
+                index = add(value);
+                constants.put(value, index);
+            }
+            return index;
+        }
+
+        private static int access(int depth, boolean boxed) {
+            return depth > 0 ? CAPTURED : boxed ? BOXED : LOCAL;
+        }
+
+        private int global(Variable variable) {
+            if (variable == null) {
+                return NONE;
+            }
+
+            Integer index = globals.get(variable);
+
+            if (index == null) {
+                index = add(variable);
+                globals.put(variable, index);
+            }
+            return index;
+        }
+
+        private int add(Object value) {
+            if (constantCount == constantPool.length) {
+                constantPool = Arrays.copyOf(constantPool, constantCount * 2);
+            }
+            constantPool[constantCount] = value;
+            return constantCount++;
+        }
+
+        // Children go through a local first. Flattening them may reallocate nodes, and an assignment straight
+        // into nodes[...] would write to the old array.
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int node = allocate(BINARY, 3);
+            nodes[node + 1] = token(expr.operator);
+            int left = expr(expr.left);
+            nodes[node + 2] = left;
+            int right = expr(expr.right);
+            nodes[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int node = allocate(CALL, 4 + expr.arguments.size());
+            nodes[node + 1] = token(expr.paren);
+            nodes[node + 2] = expr.tail ? 1 : 0;
+            nodes[node + 4] = expr.arguments.size();
+            int callee = expr(expr.callee);
+            nodes[node + 3] = callee;
+
+            for (int i = 0; i < expr.arguments.size(); ++i) {
+                int argument = expr(expr.arguments.get(i));
+                nodes[node + 5 + i] = argument;
+            }
+            return node;
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            int node = allocate(GROUPING, 1);
+            int expression = expr(expr.expression);
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            int node = allocate(LITERAL, 1);
+            // null is a valid HashMap key, so nil gets a constant too
+            nodes[node + 1] = constant(expr.value);
+            return node;
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            int node = allocate(TERNARY, 3);
+            int condition = expr(expr.condition);
+            nodes[node + 1] = condition;
+            int thenBranch = expr(expr.trueBranch);
+            nodes[node + 2] = thenBranch;
+            int elseBranch = expr(expr.falseBranch);
+            nodes[node + 3] = elseBranch;
+            return node;
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int node = allocate(UNARY, 2);
+            nodes[node + 1] = token(expr.operator);
+            int operand = expr(expr.right);
+            nodes[node + 2] = operand;
+            return node;
+        }
+
+        @Override
+        public Integer visitVarExpr(Expr.Var expr) {
+            int node = allocate(VAR, 4);
+            nodes[node + 1] = token(expr.name);
+            nodes[node + 2] = global(expr.resolved);
+            nodes[node + 3] = access(expr.depth, expr.boxed);
+            nodes[node + 4] = expr.depth > 0 ? expr.capture : expr.slot;
+            return node;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            int node = allocate(ASSIGN, 5);
+            nodes[node + 1] = token(expr.name);
+            nodes[node + 2] = global(expr.resolved);
+            nodes[node + 3] = access(expr.depth, expr.boxed);
+            nodes[node + 4] = expr.depth > 0 ? expr.capture : expr.slot;
+            int value = expr(expr.value);
+            nodes[node + 5] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitOrExpr(Expr.Or expr) {
+            int node = allocate(OR, 3);
+            nodes[node + 1] = NONE;
+            int left = expr(expr.left);
+            nodes[node + 2] = left;
+            int right = expr(expr.right);
+            nodes[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitAndExpr(Expr.And expr) {
+            int node = allocate(AND, 3);
+            nodes[node + 1] = NONE;
+            int left = expr(expr.left);
+            nodes[node + 2] = left;
+            int right = expr(expr.right);
+            nodes[node + 3] = right;
+            return node;
+        }
+
+        @Override
+        public Integer visitFunctionExpr(Expr.Function expr) {
+            int node = allocate(FUNCTION, 6 + expr.parameters.size());
+            nodes[node + 1] = expr.frameSize;
+            nodes[node + 3] = expr.parameters.size();
+            nodes[node + 4] = add(expr.captures);
+            nodes[node + 5] = add(expr.boxedParameters);
+            nodes[node + 6] = expr.memoizable ? 1 : 0;
+
+            for (int i = 0; i < expr.parameters.size(); ++i) {
+                nodes[node + 7 + i] = token(expr.parameters.get(i));
+            }
+
+            int body = block(expr.body);
+            nodes[node + 2] = body;
+            return node;
+        }
+
+        @Override
+        public Integer visitFusedExpr(Expr.Fused expr) {
+            return expr.original.accept(this);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            int node = allocate(EXPRESSION, 1);
+            int expression = expr(stmt.expression);
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            int node = allocate(PRINT, 1);
+            int expression = expr(stmt.expression);
+            nodes[node + 1] = expression;
+            return node;
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int node = allocate(VAR_STMT, 5);
+            nodes[node + 1] = token(stmt.name);
+            nodes[node + 2] = global(stmt.resolved);
+            nodes[node + 3] = access(0, stmt.boxed);
+            nodes[node + 4] = stmt.slot;
+            int value = expr(stmt.initializer);
+            nodes[node + 5] = value;
+            return node;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            return block(stmt.statements);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int node = allocate(IF, 3);
+            int condition = expr(stmt.condition);
+            nodes[node + 1] = condition;
+            int thenBranch = stmt(stmt.thenBranch);
+            nodes[node + 2] = thenBranch;
+            int elseBranch = stmt(stmt.elseBranch);
+            nodes[node + 3] = elseBranch;
+            return node;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int node = allocate(WHILE, 2);
+            int condition = expr(stmt.condition);
+            nodes[node + 1] = condition;
+            int body = stmt(stmt.statement);
+            nodes[node + 2] = body;
+            return node;
+        }
+
+        @Override
+        public Integer visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            return visitWhileStmt(stmt.loop);
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            int node = allocate(RETURN, 1);
+            int expression = expr(stmt.expression);
+            nodes[node + 1] = expression;
+            return node;
+        }
+    }
+}
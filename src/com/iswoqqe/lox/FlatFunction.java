@@ -0,0 +1,57 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+class FlatFunction implements Callable {
+    // the FlatInterpreter calls its functions itself, it is kept for natives
+    private final FlatInterpreter flatInterpreter;
+    final FlatAst ast;
+    final int node;
+    final Variable[] captures;
+
+    FlatFunction(FlatInterpreter interpreter, FlatAst ast, int node, Variable[] captures) {
+        this.flatInterpreter = interpreter;
+        this.ast = ast;
+        this.node = node;
+        this.captures = captures;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object[] frame = newFrame();
+
+        for (int i = 0; i < arguments.size(); ++i) {
+            frame[i + 1] = arguments.get(i);
+        }
+
+        return flatInterpreter.executeFunction(this, frame);
+    }
+
+    @Override
+    public int arity() {
+        return ast.parameterCount(node);
+    }
+
+    Object[] newFrame() {
+        Object[] frame = new Object[ast.frameSize(node)];
+        frame[0] = captures;
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<fn(");
+
+        for (int i = 0; i < arity(); ++i) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(ast.lexeme(ast.parameter(node, i)));
+        }
+
+        builder.append(")>");
+
+        return builder.toString();
+    }
+}
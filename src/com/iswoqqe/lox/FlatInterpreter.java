@@ -0,0 +1,420 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Tree walking interpreter over a FlatAst. It behaves like Interpreter without specialization or JIT, and
+// tokens are only materialized to report runtime errors.
+class FlatInterpreter implements FlatAst.Visitor<Object> {
+    private static final Object NORMAL = Interpreter.NORMAL;
+    // see Interpreter.TAIL_CALL
+    private static final Object TAIL_CALL = new Object();
+
+    private final Interpreter interpreter;
+    private FlatAst ast = null;
+    private Object[] frame = null;
+    private FlatFunction tailFunction = null;
+    private Object[] tailFrame = null;
+
+    // natives are called with the given interpreter
+    FlatInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(FlatAst ast) {
+        this.ast = ast;
+        frame = new Object[ast.frameSize()];
+
+        try {
+            int root = ast.root();
+
+            for (int i = 0; i < ast.statementCount(root); ++i) {
+                // a return at top level ends the script
+                if (execute(ast.statement(root, i)) != NORMAL) {
+                    break;
+                }
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            this.ast = null;
+            frame = null;
+        }
+    }
+
+    Object executeFunction(FlatFunction function, Object[] frame) {
+        FlatAst previousAst = this.ast;
+        Object[] previousFrame = this.frame;
+
+        try {
+            while (true) {
+                this.ast = function.ast;
+                this.frame = frame;
+                Function.boxParameters(ast.boxedParameters(function.node), frame);
+
+                int body = ast.body(function.node);
+                Object completion = null;
+
+                for (int i = 0; i < ast.statementCount(body); ++i) {
+                    Object result = execute(ast.statement(body, i));
+
+                    if (result != NORMAL) {
+                        completion = result;
+                        break;
+                    }
+                }
+
+                if (completion != TAIL_CALL) {
+                    return completion;
+                }
+
+                function = tailFunction;
+                frame = tailFrame;
+                tailFunction = null;
+                tailFrame = null;
+            }
+        } finally {
+            this.ast = previousAst;
+            this.frame = previousFrame;
+        }
+    }
+
+    @Override
+    public Object visitReturnStmt(int node) {
+        int expression = ast.expression(node);
+        return expression == FlatAst.NONE ? null : evaluate(expression);
+    }
+
+    @Override
+    public Object visitWhileStmt(int node) {
+        int condition = ast.condition(node);
+        int body = ast.body(node);
+
+        while (Interpreter.isTruthy(evaluate(condition))) {
+            Object completion = execute(body);
+
+            if (completion != NORMAL) {
+                return completion;
+            }
+        }
+
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitIfStmt(int node) {
+        if (Interpreter.isTruthy(evaluate(ast.condition(node)))) {
+            return execute(ast.thenBranch(node));
+        } else if (ast.elseBranch(node) != FlatAst.NONE) {
+            return execute(ast.elseBranch(node));
+        }
+
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitBlockStmt(int node) {
+        for (int i = 0; i < ast.statementCount(node); ++i) {
+            Object completion = execute(ast.statement(node, i));
+
+            if (completion != NORMAL) {
+                return completion;
+            }
+        }
+
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitVarStmt(int node) {
+        Variable global = ast.global(node);
+
+        if (global != null) {
+            global.value = evaluate(ast.value(node));
+        } else if (ast.access(node) == FlatAst.BOXED) {
+            frame[ast.slot(node)] = new Variable(evaluate(ast.value(node)));
+        } else {
+            frame[ast.slot(node)] = evaluate(ast.value(node));
+        }
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitExpressionStmt(int node) {
+        evaluate(ast.expression(node));
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitPrintStmt(int node) {
+        System.out.println(Interpreter.stringify(evaluate(ast.expression(node))));
+        return NORMAL;
+    }
+
+    @Override
+    public Object visitFunctionExpr(int node) {
+        FlatFunction function = new FlatFunction(this, ast, node, Function.capture(ast.captures(node), frame));
+        return interpreter.closure(function, ast.memoizable(node));
+    }
+
+    @Override
+    public Object visitCallExpr(int node) {
+        Object callee = evaluate(ast.callee(node));
+        int count = ast.argumentCount(node);
+
+        if (!(callee instanceof Callable)) {
+            throw new RuntimeError(ast.token(ast.paren(node)), "Can only call functions.");
+        }
+
+        Callable function = (Callable) callee;
+
+        if (function.arity() != count) {
+            throw new RuntimeError(ast.token(ast.paren(node)),
+                    "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+
+        if (function instanceof FlatFunction) {
+            FlatFunction flat = (FlatFunction) function;
+            // a fresh frame, closures may still hold on to the current one
+            Object[] calleeFrame = flat.newFrame();
+
+            for (int i = 0; i < count; ++i) {
+                calleeFrame[i + 1] = evaluate(ast.argument(node, i));
+            }
+
+            if (ast.isTail(node)) {
+                tailFunction = flat;
+                tailFrame = calleeFrame;
+                return TAIL_CALL;
+            }
+            return executeFunction(flat, calleeFrame);
+        }
+
+        try {
+            return call(function, node, count);
+        } catch (Interpreter.NativeError error) {
+            throw new RuntimeError(ast.token(ast.paren(node)), error.getMessage());
+        }
+    }
+
+    private Object call(Callable function, int node, int count) {
+        switch (count) {
+            case 0:
+                return function.call0(interpreter);
+            case 1:
+                return function.call1(interpreter, evaluate(ast.argument(node, 0)));
+            case 2:
+                return function.call2(interpreter, evaluate(ast.argument(node, 0)),
+                        evaluate(ast.argument(node, 1)));
+        }
+
+        List<Object> arguments = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            arguments.add(evaluate(ast.argument(node, i)));
+        }
+
+        return function.call(interpreter, arguments);
+    }
+
+    @Override
+    public Object visitOrExpr(int node) {
+        Object val = evaluate(ast.left(node));
+
+        if (Interpreter.isTruthy(val)) {
+            return val;
+        }
+
+        return evaluate(ast.right(node));
+    }
+
+    @Override
+    public Object visitAndExpr(int node) {
+        Object val = evaluate(ast.left(node));
+
+        if (!Interpreter.isTruthy(val)) {
+            return val;
+        }
+
+        return evaluate(ast.right(node));
+    }
+
+    @Override
+    public Object visitAssignExpr(int node) {
+        Object value = evaluate(ast.value(node));
+        Variable global = ast.global(node);
+
+        if (global != null) {
+            global.value = value;
+        } else {
+            switch (ast.access(node)) {
+                case FlatAst.LOCAL:
+                    frame[ast.slot(node)] = value;
+                    break;
+                case FlatAst.BOXED:
+                    ((Variable) frame[ast.slot(node)]).value = value;
+                    break;
+                default:
+                    ((Variable[]) frame[0])[ast.slot(node)].value = value;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitVarExpr(int node) {
+        Variable global = ast.global(node);
+
+        if (global != null) {
+            return global.value;
+        }
+
+        switch (ast.access(node)) {
+            case FlatAst.LOCAL:
+                return frame[ast.slot(node)];
+            case FlatAst.BOXED:
+                return ((Variable) frame[ast.slot(node)]).value;
+            default:
+                return ((Variable[]) frame[0])[ast.slot(node)].value;
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpr(int node) {
+        int operator = ast.operator(node);
+
+        switch (ast.tokenType(operator)) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return Interpreter.box(evaluateDouble(node));
+            case GREATER:
+                return leftOperand(node) > rightOperand(node);
+            case GREATER_EQUAL:
+                return leftOperand(node) >= rightOperand(node);
+            case LESS:
+                return leftOperand(node) < rightOperand(node);
+            case LESS_EQUAL:
+                return leftOperand(node) <= rightOperand(node);
+        }
+
+        Object left = evaluate(ast.left(node));
+        Object right = evaluate(ast.right(node));
+
+        switch (ast.tokenType(operator)) {
+            case COMMA:
+                return right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return Interpreter.box((double) left + (double) right);
+                }
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + right;
+                }
+                throw new RuntimeError(ast.token(operator), "Operands must be numbers or strings.");
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitGroupingExpr(int node) {
+        return evaluate(ast.expression(node));
+    }
+
+    @Override
+    public Object visitLiteralExpr(int node) {
+        return ast.literal(node);
+    }
+
+    @Override
+    public Object visitTernaryExpr(int node) {
+        if (Interpreter.isTruthy(evaluate(ast.condition(node)))) {
+            return evaluate(ast.thenBranch(node));
+        } else {
+            return evaluate(ast.elseBranch(node));
+        }
+    }
+
+    @Override
+    public Object visitUnaryExpr(int node) {
+        int operator = ast.operator(node);
+
+        if (ast.tokenType(operator) == TokenType.MINUS) {
+            return Interpreter.box(evaluateDouble(node));
+        }
+
+        Object right = evaluate(ast.operand(node));
+
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(ast.token(operator), "Operand must be a number.");
+        }
+
+        // numbers are always truthy, this only checks the operand
+        return !Interpreter.isTruthy(right);
+    }
+
+    // see Interpreter.evaluateDouble
+    private double evaluateDouble(int node) {
+        switch (ast.kind(node)) {
+            case FlatAst.BINARY:
+                switch (ast.tokenType(ast.operator(node))) {
+                    case MINUS:
+                        return leftOperand(node) - rightOperand(node);
+                    case STAR:
+                        return leftOperand(node) * rightOperand(node);
+                    case SLASH:
+                        return leftOperand(node) / rightOperand(node);
+                }
+                break;
+            case FlatAst.UNARY:
+                if (ast.tokenType(ast.operator(node)) == TokenType.MINUS) {
+                    try {
+                        return -evaluateDouble(ast.operand(node));
+                    } catch (Interpreter.NotANumber e) {
+                        throw new RuntimeError(ast.token(ast.operator(node)), "Operand must be a number.");
+                    }
+                }
+                break;
+            case FlatAst.GROUPING:
+                return evaluateDouble(ast.expression(node));
+        }
+
+        Object value = evaluate(node);
+
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw Interpreter.NotANumber.INSTANCE;
+    }
+
+    // both operands are evaluated before a non-number is reported
+    private double leftOperand(int node) {
+        try {
+            return evaluateDouble(ast.left(node));
+        } catch (Interpreter.NotANumber e) {
+            evaluate(ast.right(node));
+            throw new RuntimeError(ast.token(ast.operator(node)), "Operands must be numbers.");
+        }
+    }
+
+    private double rightOperand(int node) {
+        try {
+            return evaluateDouble(ast.right(node));
+        } catch (Interpreter.NotANumber e) {
+            throw new RuntimeError(ast.token(ast.operator(node)), "Operands must be numbers.");
+        }
+    }
+
+
+    private Object execute(int node) {
+        return ast.accept(node, this);
+    }
+
+    private Object evaluate(int node) {
+        return ast.accept(node, this);
+    }
+}
@@ -3,27 +3,104 @@ package com.iswoqqe.lox;
 import java.util.List;
 
 public class Function implements Callable {
+    private static final Variable[] NO_CAPTURES = new Variable[0];
+
     private final Expr.Function definition;
+    private final Variable[] captures;
 
-    Function(Expr.Function definition) {
+    Function(Expr.Function definition, Variable[] captures) {
         this.definition = definition;
+        this.captures = captures;
+    }
+
+    // Boxes captured by a closure made in the given frame, see Expr.Function.captures. Closures of every engine
+    // are flat: they keep these boxes, never the frame itself.
+    static Variable[] capture(int[] captures, Object[] frame) {
+        if (captures.length == 0) {
+            return NO_CAPTURES;
+        }
+
+        Variable[] boxes = new Variable[captures.length];
+
+        for (int i = 0; i < captures.length; ++i) {
+            int source = captures[i];
+            boxes[i] = source >= 0 ? (Variable) frame[source] : ((Variable[]) frame[0])[~source];
+        }
+        return boxes;
+    }
+
+    // run on entry, before the body
+    static void boxParameters(int[] slots, Object[] frame) {
+        for (int slot : slots) {
+            frame[slot] = new Variable(frame[slot]);
+        }
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         // interpreter should only pass arguments list of correct size
 
-        for (int i = 0; i < definition.parameters.size(); ++i) {
-            definition.resolved.get(i).value = arguments.get(i);
-        }
+        Object[] frame = newFrame();
 
-        try {
-            interpreter.interpret(definition.body);
-        } catch (Return ret) {
-            return ret.value;
+        for (int i = 0; i < arguments.size(); ++i) {
+            frame[i + 1] = arguments.get(i);
         }
 
-        return null;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        Object[] frame = newFrame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        frame[4] = a3;
+        return invoke(interpreter, frame);
+    }
+
+    Expr.Function getDefinition() {
+        return definition;
+    }
+
+    Object[] newFrame() {
+        Object[] frame = new Object[definition.frameSize];
+        frame[0] = captures;
+        return frame;
+    }
+
+    private Object invoke(Interpreter interpreter, Object[] frame) {
+        // picks JIT code when there is some
+        return interpreter.executeFunction(definition, frame);
     }
 
     @Override
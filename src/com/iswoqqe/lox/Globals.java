@@ -0,0 +1,28 @@
+package com.iswoqqe.lox;
+
+import java.util.Arrays;
+
+// Global variable cells indexed by symbol ID.
+class Globals {
+    private Variable[] variables = new Variable[64];
+
+    // null if the symbol is not defined
+    Variable get(int symbol) {
+        return symbol < variables.length ? variables[symbol] : null;
+    }
+
+    void put(int symbol, Variable variable) {
+        if (symbol >= variables.length) {
+            variables = Arrays.copyOf(variables, Math.max(symbol + 1, variables.length * 2));
+        }
+        variables[symbol] = variable;
+    }
+
+    void putAll(Globals other) {
+        for (int symbol = 0; symbol < other.variables.length; ++symbol) {
+            if (other.variables[symbol] != null) {
+                put(symbol, other.variables[symbol]);
+            }
+        }
+    }
+}
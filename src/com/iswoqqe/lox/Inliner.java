@@ -0,0 +1,536 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces calls of small functions by their bodies. A function qualifies when it is bound by a var
+// statement that is never assigned to again, and its body is a single return, which is what `fn f(x) expr;`
+// gives. The returned expression can only use literals, globals and the function's own parameters, and at
+// most MAX_SIZE nodes. Only calls that come after the declaration in the source are inlined, earlier ones
+// could run before the variable holds the function.
+//
+// Globals only qualify when the statements are the whole program. Otherwise a later input of the prompt can
+// assign to them.
+//
+// Arguments are still evaluated once and in order. Each inlined call gets fresh slots in the caller's frame
+// for its arguments, except literal arguments which are substituted directly. Bodies are inlined as they
+// were written, so inlining never recurses.
+class Inliner extends AstRewriter {
+    private static final int MAX_SIZE = 16;
+
+    // local variable, identified by the function whose frame holds it
+    private static final class Local {
+        final Object owner;
+        final int slot;
+
+        Local(Object owner, int slot) {
+            this.owner = owner;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Local && ((Local) other).owner == owner && ((Local) other).slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + slot;
+        }
+    }
+
+    private static final class Frame {
+        final Object owner;
+        int size;
+
+        Frame(Object owner, int size) {
+            this.owner = owner;
+            this.size = size;
+        }
+    }
+
+    // owner of the script frame
+    private static final Object SCRIPT = new Object();
+
+    // functions that may be inlined by binding, a global Variable or a Local
+    private final Map<Object, Expr.Function> candidates = new HashMap<>();
+    // candidates whose declaration has been passed
+    private final Set<Object> declared = new HashSet<>();
+    private final List<Frame> frames = new ArrayList<>();
+    private final boolean wholeProgram;
+
+    Inliner(int frameSize, boolean wholeProgram) {
+        frames.add(new Frame(SCRIPT, frameSize));
+        this.wholeProgram = wholeProgram;
+    }
+
+    List<Stmt> inline(List<Stmt> statements) {
+        Collector collector = new Collector();
+        collector.statements(statements);
+
+        for (Object binding : collector.assigned) {
+            candidates.remove(binding);
+        }
+
+        return rewrite(statements);
+    }
+
+    // size of the script frame, inlined calls at top level add slots to it
+    int getFrameSize() {
+        return frames.get(0).size;
+    }
+
+    private Object binding(List<Frame> frames, Variable resolved, int depth, int slot) {
+        if (resolved != null) {
+            return resolved;
+        }
+        return new Local(frames.get(frames.size() - 1 - depth).owner, slot);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Var) {
+            Expr.Var callee = (Expr.Var) expr.callee;
+            Object binding = binding(frames, callee.resolved, callee.depth, callee.slot);
+            Expr.Function function = candidates.get(binding);
+
+            if (function != null && declared.contains(binding)
+                    && function.parameters.size() == expr.arguments.size()) {
+                return inline(function, expr);
+            }
+        }
+
+        return super.visitCallExpr(expr);
+    }
+
+    private Expr inline(Expr.Function function, Expr.Call call) {
+        Frame frame = frames.get(frames.size() - 1);
+        Expr body = ((Stmt.Return) function.body.get(0)).expression;
+        Expr[] parameters = new Expr[function.parameters.size() + 1];
+        List<Expr> bindings = new ArrayList<>();
+
+        for (int i = 0; i < call.arguments.size(); ++i) {
+            Expr argument = rewrite(call.arguments.get(i));
+            Token name = function.parameters.get(i);
+
+            // a parameter the body assigns to needs its slot
+            if (argument instanceof Expr.Literal && !assigns(body, i + 1)) {
+                parameters[i + 1] = argument;
+                continue;
+            }
+
+            Expr.Assign assign = new Expr.Assign(name, null, argument);
+            assign.slot = frame.size++;
+            bindings.add(assign);
+
+            Expr.Var var = new Expr.Var(name, null);
+            var.slot = assign.slot;
+            parameters[i + 1] = var;
+        }
+
+        Expr inlined = new Copier(parameters).copy(body, call.tail);
+        Token comma = new Token(TokenType.COMMA, ",", null, call.paren.line, call.paren.column, -1);
+
+        for (int i = bindings.size() - 1; i >= 0; --i) {
+            inlined = new Expr.Binary(bindings.get(i), comma, inlined);
+        }
+        return inlined;
+    }
+
+    // true if an inlinable body assigns to the parameter in the given slot
+    private static boolean assigns(Expr expr, int slot) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            return (assign.resolved == null && assign.slot == slot) || assigns(assign.value, slot);
+        } else if (expr instanceof Expr.Binary) {
+            return assigns(((Expr.Binary) expr).left, slot) || assigns(((Expr.Binary) expr).right, slot);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+
+            for (Expr argument : call.arguments) {
+                if (assigns(argument, slot)) {
+                    return true;
+                }
+            }
+            return assigns(call.callee, slot);
+        } else if (expr instanceof Expr.Grouping) {
+            return assigns(((Expr.Grouping) expr).expression, slot);
+        } else if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary) expr;
+            return assigns(ternary.condition, slot) || assigns(ternary.trueBranch, slot)
+                    || assigns(ternary.falseBranch, slot);
+        } else if (expr instanceof Expr.Unary) {
+            return assigns(((Expr.Unary) expr).right, slot);
+        } else if (expr instanceof Expr.Or) {
+            return assigns(((Expr.Or) expr).left, slot) || assigns(((Expr.Or) expr).right, slot);
+        } else if (expr instanceof Expr.And) {
+            return assigns(((Expr.And) expr).left, slot) || assigns(((Expr.And) expr).right, slot);
+        }
+        return false;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        Frame frame = new Frame(expr, expr.frameSize);
+        frames.add(frame);
+
+        try {
+            List<Stmt> body = rewrite(expr.body);
+            Expr.Function function = new Expr.Function(expr.parameters, body);
+            function.frameSize = frame.size;
+            function.captures = expr.captures;
+            function.boxedParameters = expr.boxedParameters;
+            function.memoizable = expr.memoizable;
+            return function;
+        } finally {
+            frames.remove(frames.size() - 1);
+        }
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt var = super.visitVarStmt(stmt);
+        Object binding = stmt.resolved != null ? stmt.resolved : new Local(frames.get(frames.size() - 1).owner,
+                stmt.slot);
+
+        if (candidates.get(binding) == stmt.initializer) {
+            declared.add(binding);
+        }
+        return var;
+    }
+
+    // Finds the candidates and every binding that is assigned to. Only var statements directly in a list of
+    // statements count, one in a bare if or while branch may never run.
+    private class Collector implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final Set<Object> assigned = new HashSet<>();
+        private final List<Frame> frames = new ArrayList<>();
+
+        Collector() {
+            frames.add(new Frame(SCRIPT, 0));
+        }
+
+        void statements(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                if (statement instanceof Stmt.Var && ((Stmt.Var) statement).initializer instanceof Expr.Function) {
+                    Stmt.Var var = (Stmt.Var) statement;
+                    Expr.Function function = (Expr.Function) var.initializer;
+                    Object binding = binding(frames, var.resolved, 0, var.slot);
+
+                    if ((wholeProgram || !(binding instanceof Variable)) && isInlinable(function, binding)) {
+                        candidates.put(binding, function);
+                    }
+                }
+
+                statement(statement);
+            }
+        }
+
+        private boolean isInlinable(Expr.Function function, Object binding) {
+            if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) {
+                return false;
+            }
+
+            Expr expression = ((Stmt.Return) function.body.get(0)).expression;
+            return expression != null && new Sizer(binding).size(expression) <= MAX_SIZE;
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt != null) {
+                stmt.accept(this);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr != null) {
+                expr.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expression(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expression(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expression(expr.condition);
+            expression(expr.trueBranch);
+            expression(expr.falseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.Var expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            assigned.add(binding(frames, expr.resolved, expr.depth, expr.slot));
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitOrExpr(Expr.Or expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitAndExpr(Expr.And expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            frames.add(new Frame(expr, 0));
+            statements(expr.body);
+            frames.remove(frames.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitFusedExpr(Expr.Fused expr) {
+            expression(expr.original);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            expression(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expression(stmt.condition);
+            statement(stmt.statement);
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            return visitWhileStmt(stmt.loop);
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+    }
+
+    // Number of nodes in an inlinable body, or MAX_SIZE + 1 if it uses something that cannot be moved to
+    // another frame: a nested function, a variable of an enclosing function or the function itself.
+    private static class Sizer implements Expr.Visitor<Integer> {
+        private static final int TOO_BIG = MAX_SIZE + 1;
+
+        private final Object self;
+
+        Sizer(Object self) {
+            this.self = self;
+        }
+
+        int size(Expr expr) {
+            return Math.min(expr.accept(this), TOO_BIG);
+        }
+
+        private int variable(Variable resolved, int depth) {
+            if (resolved != null) {
+                return resolved == self ? TOO_BIG : 1;
+            }
+            return depth == 0 ? 1 : TOO_BIG;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return 1 + size(expr.left) + size(expr.right);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int size = 1 + size(expr.callee);
+            for (Expr argument : expr.arguments) {
+                size += size(argument);
+            }
+            return size;
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return size(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return 1;
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            return 1 + size(expr.condition) + size(expr.trueBranch) + size(expr.falseBranch);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return 1 + size(expr.right);
+        }
+
+        @Override
+        public Integer visitVarExpr(Expr.Var expr) {
+            return variable(expr.resolved, expr.depth);
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return variable(expr.resolved, expr.depth) + size(expr.value);
+        }
+
+        @Override
+        public Integer visitOrExpr(Expr.Or expr) {
+            return 1 + size(expr.left) + size(expr.right);
+        }
+
+        @Override
+        public Integer visitAndExpr(Expr.And expr) {
+            return 1 + size(expr.left) + size(expr.right);
+        }
+
+        @Override
+        public Integer visitFunctionExpr(Expr.Function expr) {
+            return TOO_BIG;
+        }
+
+        @Override
+        public Integer visitFusedExpr(Expr.Fused expr) {
+            return size(expr.original);
+        }
+    }
+
+    // Copies an inlined body. Parameters become the expressions bound to them, and calls stay tail calls
+    // only if they were in tail position of the body and the inlined call was a tail call itself.
+    private static class Copier {
+        private final Expr[] parameters;
+
+        Copier(Expr[] parameters) {
+            this.parameters = parameters;
+        }
+
+        Expr copy(Expr expr, boolean tail) {
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                return new Expr.Binary(copy(binary.left, false), binary.operator, copy(binary.right, false));
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                List<Expr> arguments = new ArrayList<>(call.arguments.size());
+
+                for (Expr argument : call.arguments) {
+                    arguments.add(copy(argument, false));
+                }
+
+                Expr.Call copy = new Expr.Call(copy(call.callee, false), call.paren, arguments);
+                copy.tail = tail;
+                return copy;
+            } else if (expr instanceof Expr.Grouping) {
+                return new Expr.Grouping(copy(((Expr.Grouping) expr).expression, tail));
+            } else if (expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                return new Expr.Ternary(copy(ternary.condition, false), copy(ternary.trueBranch, tail),
+                        copy(ternary.falseBranch, tail));
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                return new Expr.Unary(unary.operator, copy(unary.right, false));
+            } else if (expr instanceof Expr.Var) {
+                Expr.Var var = (Expr.Var) expr;
+                return var.resolved != null ? new Expr.Var(var.name, var.resolved) : parameters[var.slot];
+            } else if (expr instanceof Expr.Assign) {
+                return copyAssign((Expr.Assign) expr);
+            } else if (expr instanceof Expr.Or) {
+                Expr.Or or = (Expr.Or) expr;
+                return new Expr.Or(copy(or.left, false), copy(or.right, tail));
+            } else if (expr instanceof Expr.And) {
+                Expr.And and = (Expr.And) expr;
+                return new Expr.And(copy(and.left, false), copy(and.right, tail));
+            }
+
+            // literals are never changed, so they can be shared
+            return expr;
+        }
+
+        private Expr copyAssign(Expr.Assign assign) {
+            Expr value = copy(assign.value, false);
+
+            if (assign.resolved != null) {
+                return new Expr.Assign(assign.name, assign.resolved, value);
+            }
+
+            // assigned parameters always get a slot, see assigns
+            Expr.Var var = (Expr.Var) parameters[assign.slot];
+            Expr.Assign copy = new Expr.Assign(assign.name, null, value);
+            copy.slot = var.slot;
+            return copy;
+        }
+    }
+}
@@ -1,17 +1,68 @@
 package com.iswoqqe.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private final Map<String, Variable> globals = new HashMap<>();
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+    private static final int BOX_CACHE_LOW = -128;
+    private static final int BOX_CACHE_HIGH = 1024;
+    private static final Double[] BOX_CACHE = new Double[BOX_CACHE_HIGH - BOX_CACHE_LOW];
+
+    static {
+        for (int i = 0; i < BOX_CACHE.length; ++i) {
+            BOX_CACHE[i] = (double) (i + BOX_CACHE_LOW);
+        }
+    }
+
+    // Completion of a statement that did not execute a return. Statements that do return hand back the
+    // returned value instead, and enclosing statements pass it on unchanged.
+    static final Object NORMAL = new Object();
+
+    // Completion of a return whose value is a tail call. The callee and its frame are left in tailFunction and
+    // tailFrame, and executeFunction runs it in place of the returning function instead of nesting a call.
+    private static final Object TAIL_CALL = new Object();
+
+    // thrown by evaluateDouble, never escapes the interpreter
+    static class NotANumber extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final NotANumber INSTANCE = new NotANumber();
+
+        private NotANumber() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Thrown by natives, which have no token of their own. Every engine raises it as a RuntimeError at the
+    // paren of the call that ran the native.
+    static class NativeError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NativeError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Globals globals = new Globals();
+    private Object[] frame = null;
+    // function whose body is running, null at top level
+    private Expr.Function function = null;
+    private boolean specializing = false;
+    private boolean switchDispatch = false;
+    private int memoSize = 0;
+    private Jit jit = null;
+    private Expr.Function tailFunction = null;
+    private Object[] tailFrame = null;
 
     Interpreter() {
-        globals.put("clock", new Variable(new Callable() {
+        globals.put(Symbols.intern("clock"), new Variable(new Callable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000;
             }
 
@@ -26,13 +77,47 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }));
 
-        globals.put("print", new Variable(new Callable() {
+        globals.put(Symbols.intern("memo"), new Variable(new Callable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return call2(interpreter, arguments.get(0), arguments.get(1));
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object a0, Object a1) {
+                if (!(a0 instanceof Callable)) {
+                    throw new NativeError("Can only memoize functions.");
+                }
+                // written so that NaN fails too
+                if (!(a1 instanceof Double) || !((double) a1 >= 1)) {
+                    throw new NativeError("Memo size must be a positive number.");
+                }
+                return new Memo((Callable) a0, (int) (double) a1);
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn: memo()>";
+            }
+        }));
+
+        globals.put(Symbols.intern("print"), new Variable(new Callable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                if (arguments.get(0) == null) {
+                return call1(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object a0) {
+                if (a0 == null) {
                     System.out.println("nil");
                 } else {
-                    System.out.println(arguments.get(0).toString());
+                    System.out.println(a0.toString());
                 }
                 return null;
             }
@@ -49,13 +134,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }));
     }
 
-    void interpret(List<Stmt> statements) {
+    void interpret(List<Stmt> statements, int frameSize) {
+        frame = new Object[frameSize];
+
         try {
             for (Stmt statement : statements) {
-                execute(statement);
+                // a return at top level ends the script
+                if (execute(statement) != NORMAL) {
+                    break;
+                }
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            frame = null;
         }
     }
 
@@ -67,13 +159,83 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    void defineNewGlobals(Map<String, Variable> newGlobals) {
-        for (Map.Entry<String, Variable> entry : newGlobals.entrySet()) {
-            globals.put(entry.getKey(), entry.getValue());
+    Object executeFunction(Expr.Function function, Object[] frame) {
+        Object[] previousFrame = this.frame;
+        Expr.Function previousFunction = this.function;
+
+        try {
+            // tail calls loop here instead of nesting, so tail recursion runs in constant Java stack
+            while (true) {
+                Function.boxParameters(function.boxedParameters, frame);
+                JitCode code = jit != null ? jit.codeFor(function) : null;
+                Object completion;
+
+                if (code != null) {
+                    completion = code.invoke(frame);
+                } else {
+                    this.frame = frame;
+                    this.function = function;
+                    completion = executeBody(function.body);
+                }
+
+                if (completion != TAIL_CALL) {
+                    return completion;
+                }
+
+                function = tailFunction;
+                frame = tailFrame;
+                tailFunction = null;
+                tailFrame = null;
+            }
+        } finally {
+            this.frame = previousFrame;
+            this.function = previousFunction;
+        }
+    }
+
+    private Object executeBody(List<Stmt> body) {
+        for (Stmt statement : body) {
+            Object completion = execute(statement);
+
+            if (completion != NORMAL) {
+                return completion;
+            }
         }
+
+        return null;
+    }
+
+    // lets binary nodes rewrite themselves from the operand types they observe, see BinarySpecialization
+    void setSpecializing(boolean specializing) {
+        this.specializing = specializing;
+    }
+
+    // Runs nodes with a switch on their kind instead of accept. Both call the same visit methods, so only the
+    // dispatch differs: the accept call sites see every node class, the switch is a table jump.
+    void setSwitchDispatch(boolean switchDispatch) {
+        this.switchDispatch = switchDispatch;
+    }
+
+    // caches the results of functions the resolver found memoizable, up to size per closure, 0 turns it off
+    void setAutoMemo(int size) {
+        this.memoSize = size;
+    }
+
+    // every engine makes its closures through here
+    Object closure(Callable function, boolean memoizable) {
+        return memoizable && memoSize > 0 ? new Memo(function, memoSize) : function;
+    }
+
+    // compiles hot functions to JVM bytecode, see Jit
+    void setJit(boolean enabled) {
+        this.jit = enabled ? new Jit(this) : null;
+    }
+
+    void defineNewGlobals(Globals newGlobals) {
+        globals.putAll(newGlobals);
     }
 
-    Map<String, Variable> getGlobalsRef() {
+    Globals getGlobalsRef() {
         return globals;
     }
 
@@ -93,91 +255,220 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     */
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.expression != null) {
             value = evaluate(stmt.expression);
         }
 
-        throw new Return(value);
+        return value;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.statement);
+            Object completion = execute(stmt.statement);
+
+            if (completion != NORMAL) {
+                return completion;
+            }
+
+            if (jit != null && function != null) {
+                function.backEdges += 1;
+            }
         }
 
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        Object start = evaluate(stmt.counter);
+        Object end = evaluate(stmt.limit);
+
+        // the plain loop raises the error
+        if (!(start instanceof Double) || !(end instanceof Double)) {
+            return visitWhileStmt(stmt.loop);
+        }
+
+        TokenType type = stmt.condition.operator.type;
+        double counter = (double) start;
+        double limit = (double) end;
+
+        while (counts(type, counter, limit)) {
+            Object completion = execute(stmt.body);
+
+            if (completion != NORMAL) {
+                return completion;
+            }
+
+            counter += stmt.step;
+
+            if (stmt.counter.resolved != null) {
+                stmt.counter.resolved.value = box(counter);
+            } else {
+                frame[stmt.counter.slot] = box(counter);
+            }
+
+            if (jit != null && function != null) {
+                function.backEdges += 1;
+            }
+        }
+
+        return NORMAL;
+    }
+
+    // condition of a counted loop, and of a fused comparison
+    static boolean counts(TokenType type, double counter, double limit) {
+        switch (type) {
+            case LESS:
+                return counter < limit;
+            case LESS_EQUAL:
+                return counter <= limit;
+            case GREATER:
+                return counter > limit;
+            default:
+                return counter >= limit;
+        }
+    }
+
+    @Override
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
+    public Object visitBlockStmt(Stmt.Block stmt) {
         for (Stmt statement : stmt.statements) {
-            execute(statement);
+            Object completion = execute(statement);
+
+            if (completion != NORMAL) {
+                return completion;
+            }
         }
 
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        stmt.resolved.value = evaluate(stmt.initializer);
-        return null;
+    public Object visitVarStmt(Stmt.Var stmt) {
+        if (stmt.resolved != null) {
+            stmt.resolved.value = evaluate(stmt.initializer);
+        } else if (stmt.boxed) {
+            frame[stmt.slot] = new Variable(evaluate(stmt.initializer));
+        } else {
+            frame[stmt.slot] = evaluate(stmt.initializer);
+        }
+        return NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object val = evaluate(stmt.expression);
         System.out.println(stringify(val));
-        return null;
+        return NORMAL;
     }
 
     @Override
     public Object visitFunctionExpr(Expr.Function expr) {
-        return new Function(expr);
+        return closure(new Function(expr, Function.capture(expr.captures, frame)), expr.memoizable);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, evaluate(expr.callee));
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        Callable function = expr.cache.lookup(callee);
+
+        if (function == null) {
+            if (!(callee instanceof Callable)) {
+                throw new RuntimeError(expr.paren, "Can only call functions.");
+            }
+
+            function = (Callable) callee;
+
+            if (function.arity() != expr.arguments.size()) {
+                throw new RuntimeError(expr.paren,
+                        "Expected " + function.arity() + " arguments but got " + expr.arguments.size() + ".");
+            }
+
+            expr.cache.add(function);
+        }
+
+        List<Expr> args = expr.arguments;
 
-        if (!(callee instanceof Callable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions.");
+        if (expr.tail && function instanceof Function) {
+            return tailCall((Function) function, args);
         }
 
-        Callable function = (Callable) callee;
+        try {
+            return call(function, args);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+    }
 
-        if (function.arity() != expr.arguments.size()) {
-            throw new RuntimeError(expr.paren,
-                    "Expected " + function.arity() + " arguments but got " + expr.arguments.size() + ".");
+    private Object call(Callable function, List<Expr> args) {
+        // Java evaluates call arguments left to right, so argument order is kept
+        switch (args.size()) {
+            case 0:
+                return function.call0(this);
+            case 1:
+                return function.call1(this, evaluate(args.get(0)));
+            case 2:
+                return function.call2(this, evaluate(args.get(0)), evaluate(args.get(1)));
+            case 3:
+                return function.call3(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)));
+            case 4:
+                return function.call4(this, evaluate(args.get(0)), evaluate(args.get(1)), evaluate(args.get(2)),
+                        evaluate(args.get(3)));
         }
 
         List<Object> arguments = new ArrayList<>();
-        for (Expr e : expr.arguments) {
+        for (Expr e : args) {
             arguments.add(evaluate(e));
         }
 
         return function.call(this, arguments);
     }
 
+    private Object tailCall(Function callee, List<Expr> args) {
+        // a fresh frame, closures may still hold on to the current one
+        Object[] calleeFrame = callee.newFrame();
+
+        for (int i = 0; i < args.size(); ++i) {
+            calleeFrame[i + 1] = evaluate(args.get(i));
+        }
+
+        tailFunction = callee.getDefinition();
+        tailFrame = calleeFrame;
+        return TAIL_CALL;
+    }
+
+    // tail call from JIT generated code, the arguments are already evaluated
+    Object tailCall(Function callee, Object[] arguments) {
+        Object[] calleeFrame = callee.newFrame();
+        System.arraycopy(arguments, 0, calleeFrame, 1, arguments.length);
+
+        tailFunction = callee.getDefinition();
+        tailFrame = calleeFrame;
+        return TAIL_CALL;
+    }
+
     @Override
     public Object visitOrExpr(Expr.Or expr) {
         Object val = evaluate(expr.left);
@@ -202,51 +493,122 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        expr.resolved.value = evaluate(expr.value);
-        return expr.resolved.value;
+        Object value = evaluate(expr.value);
+
+        if (expr.resolved != null) {
+            expr.resolved.value = value;
+        } else if (expr.depth > 0) {
+            ((Variable[]) frame[0])[expr.capture].value = value;
+        } else if (expr.boxed) {
+            ((Variable) frame[expr.slot]).value = value;
+        } else {
+            frame[expr.slot] = value;
+        }
+        return value;
     }
 
     @Override
     public Object visitVarExpr(Expr.Var expr) {
-        return expr.resolved.value;
+        if (expr.resolved != null) {
+            return expr.resolved.value;
+        } else if (expr.depth > 0) {
+            return ((Variable[]) frame[0])[expr.capture].value;
+        } else if (expr.boxed) {
+            return ((Variable) frame[expr.slot]).value;
+        }
+        return frame[expr.slot];
+    }
+
+    @Override
+    public Object visitFusedExpr(Expr.Fused expr) {
+        switch (expr.shape) {
+            case COMPARE_LOCAL: {
+                Object value = frame[expr.slot];
+
+                if (value instanceof Double) {
+                    return counts(expr.operator.type, (double) value, expr.constant);
+                }
+                break;
+            }
+            case INCREMENT_LOCAL: {
+                Object value = frame[expr.slot];
+
+                if (value instanceof Double) {
+                    Double result = box((double) value + expr.constant);
+                    frame[expr.slot] = result;
+                    return result;
+                }
+                break;
+            }
+            case CALL_GLOBAL:
+                return call((Expr.Call) expr.original, expr.resolved.value);
+        }
+
+        // the original raises the error
+        return evaluate(expr.original);
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (!specializing) {
+            switch (expr.operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return box(evaluateDouble(expr));
+                case GREATER:
+                    return leftOperand(expr) > rightOperand(expr);
+                case GREATER_EQUAL:
+                    return leftOperand(expr) >= rightOperand(expr);
+                case LESS:
+                    return leftOperand(expr) < rightOperand(expr);
+                case LESS_EQUAL:
+                    return leftOperand(expr) <= rightOperand(expr);
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        if (specializing) {
+            return expr.specialization.execute(expr, left, right);
+        }
+
+        return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case COMMA:
                 return right;
             case MINUS:
-                checkNumbers(expr.operator, left, right);
-                return (double) left - (double) right;
+                checkNumbers(operator, left, right);
+                return box((double) left - (double) right);
             case STAR:
-                checkNumbers(expr.operator, left, right);
-                return (double) left * (double) right;
+                checkNumbers(operator, left, right);
+                return box((double) left * (double) right);
             case SLASH:
-                checkNumbers(expr.operator, left, right);
-                return (double) left / (double) right;
+                checkNumbers(operator, left, right);
+                return box((double) left / (double) right);
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+                    return box((double) left + (double) right);
                 }
                 if (left instanceof String && right instanceof String) {
                     return (String) left + right;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be numbers or strings.");
+                throw new RuntimeError(operator, "Operands must be numbers or strings.");
             case GREATER:
-                checkNumbers(expr.operator, left, right);
+                checkNumbers(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumbers(expr.operator, left, right);
+                checkNumbers(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumbers(expr.operator, left, right);
+                checkNumbers(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumbers(expr.operator, left, right);
+                checkNumbers(operator, left, right);
                 return (double)left <= (double)right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -280,12 +642,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            return box(evaluateDouble(expr));
+        }
+
         Object right = evaluate(expr.right);
 
         switch(expr.operator.type) {
-            case MINUS:
-                checkNumber(expr.operator, right);
-                return -(double) right;
             case BANG:
                 checkNumber(expr.operator, right);
                 return !isTruthy(right);
@@ -294,22 +657,125 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Evaluates an operand of a numeric operator without boxing intermediate results. Throws NotANumber
+    // when the operand's value is not a number, so the operator can report the error itself.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+
+            switch (binary.operator.type) {
+                case MINUS:
+                    return leftOperand(binary) - rightOperand(binary);
+                case STAR:
+                    return leftOperand(binary) * rightOperand(binary);
+                case SLASH:
+                    return leftOperand(binary) / rightOperand(binary);
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+
+            if (unary.operator.type == TokenType.MINUS) {
+                try {
+                    return -evaluateDouble(unary.right);
+                } catch (NotANumber e) {
+                    throw new RuntimeError(unary.operator, "Operand must be a number.");
+                }
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        }
+
+        Object value = evaluate(expr);
+
+        if (value instanceof Double) {
+            return (double) value;
+        }
+        throw NotANumber.INSTANCE;
+    }
+
+    // both operands are evaluated before a non-number is reported, as in binary()
+    private double leftOperand(Expr.Binary expr) {
+        try {
+            return evaluateDouble(expr.left);
+        } catch (NotANumber e) {
+            evaluate(expr.right);
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+    }
+
+    private double rightOperand(Expr.Binary expr) {
+        try {
+            return evaluateDouble(expr.right);
+        } catch (NotANumber e) {
+            throw new RuntimeError(expr.operator, "Operands must be numbers.");
+        }
+    }
+
+    static Double box(double value) {
+        int i = (int) value;
+
+        // -0.0 converts to 0 as well but has to keep its sign
+        if (i == value && i >= BOX_CACHE_LOW && i < BOX_CACHE_HIGH && (i != 0 || 1 / value > 0)) {
+            return BOX_CACHE[i - BOX_CACHE_LOW];
+        }
+        return value;
+    }
+
+
+    private Object execute(Stmt stmt) {
+        if (switchDispatch) {
+            return executeByKind(stmt);
+        }
+        return stmt.accept(this);
     }
 
     private Object evaluate(Expr expr) {
+        if (switchDispatch) {
+            return evaluateByKind(expr);
+        }
         return expr.accept(this);
     }
 
-    private String stringify(Object obj) {
+    private Object executeByKind(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION: return visitExpressionStmt((Stmt.Expression) stmt);
+            case Stmt.PRINT: return visitPrintStmt((Stmt.Print) stmt);
+            case Stmt.VAR: return visitVarStmt((Stmt.Var) stmt);
+            case Stmt.BLOCK: return visitBlockStmt((Stmt.Block) stmt);
+            case Stmt.IF: return visitIfStmt((Stmt.If) stmt);
+            case Stmt.WHILE: return visitWhileStmt((Stmt.While) stmt);
+            case Stmt.COUNTED_LOOP: return visitCountedLoopStmt((Stmt.CountedLoop) stmt);
+            case Stmt.RETURN: return visitReturnStmt((Stmt.Return) stmt);
+        }
+        throw new IllegalStateException("Unknown statement kind " + stmt.kind + ".");
+    }
+
+    private Object evaluateByKind(Expr expr) {
+        switch (expr.kind) {
+            case Expr.BINARY: return visitBinaryExpr((Expr.Binary) expr);
+            case Expr.CALL: return visitCallExpr((Expr.Call) expr);
+            case Expr.GROUPING: return visitGroupingExpr((Expr.Grouping) expr);
+            case Expr.LITERAL: return visitLiteralExpr((Expr.Literal) expr);
+            case Expr.TERNARY: return visitTernaryExpr((Expr.Ternary) expr);
+            case Expr.UNARY: return visitUnaryExpr((Expr.Unary) expr);
+            case Expr.VAR: return visitVarExpr((Expr.Var) expr);
+            case Expr.ASSIGN: return visitAssignExpr((Expr.Assign) expr);
+            case Expr.OR: return visitOrExpr((Expr.Or) expr);
+            case Expr.AND: return visitAndExpr((Expr.And) expr);
+            case Expr.FUNCTION: return visitFunctionExpr((Expr.Function) expr);
+            case Expr.FUSED: return visitFusedExpr((Expr.Fused) expr);
+        }
+        throw new IllegalStateException("Unknown expression kind " + expr.kind + ".");
+    }
+
+    static String stringify(Object obj) {
         if (obj == null) {
             return "nil";
         }
         return obj.toString();
     }
 
-    private boolean isTruthy(Object val) {
+    static boolean isTruthy(Object val) {
         if (val == null) {
             return false;
         }
@@ -319,7 +785,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) {
             return true;
         }
@@ -331,14 +797,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private void checkNumber(Token operator, Object operand) {
+    static void checkNumber(Token operator, Object operand) {
         if (operand instanceof Double) {
             return;
         }
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumbers(Token operator, Object left, Object right) {
+    static void checkNumbers(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) {
             return;
         }
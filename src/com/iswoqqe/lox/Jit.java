@@ -0,0 +1,442 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles hot function bodies to JVM classes that replace the tree walking path in Function.call.
+// Bodies containing function expressions stay interpreted: their closures capture boxes from the frame,
+// while compiled code keeps the frame's slots in JVM locals.
+class Jit {
+    private static final int INVOCATION_THRESHOLD = 1000;
+    private static final int BACK_EDGE_THRESHOLD = 10000;
+
+    private static final String CODE = "com/iswoqqe/lox/JitCode";
+    private static final String RUNTIME = "com/iswoqqe/lox/JitRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+
+    // locals of the generated invoke method, frame slot n is kept in local FIRST_SLOT_LOCAL + n - 1
+    private static final int THIS_LOCAL = 0;
+    private static final int FRAME_LOCAL = 1;
+    private static final int CONSTANTS_LOCAL = 2;
+    private static final int FIRST_SLOT_LOCAL = 3;
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Loader loader = new Loader(Jit.class.getClassLoader());
+    private int classCount = 0;
+
+    Jit(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // returns compiled code for the function, compiling it once it has become hot
+    JitCode codeFor(Expr.Function function) {
+        if (function.jitCode != null || function.jitRejected) {
+            return function.jitCode;
+        }
+
+        function.invocations += 1;
+
+        if (function.invocations >= INVOCATION_THRESHOLD || function.backEdges >= BACK_EDGE_THRESHOLD) {
+            function.jitCode = compile(function);
+            function.jitRejected = function.jitCode == null;
+        }
+
+        return function.jitCode;
+    }
+
+    private JitCode compile(Expr.Function function) {
+        String name = "com/iswoqqe/lox/JitFunction" + classCount++;
+
+        try {
+            FunctionCompiler compiler = new FunctionCompiler();
+            byte[] bytes = compiler.compile(function, name);
+            Class<?> type = loader.define(name.replace('/', '.'), bytes);
+            return (JitCode) type.getConstructor(Object[].class).newInstance((Object) compiler.constants());
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // unsupported constructs end up here too, the tree walker is always a correct fallback
+            return null;
+        }
+    }
+
+    private class FunctionCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ClassFile classFile = new ClassFile();
+        private final ClassFile.Code code = classFile.newCode();
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+        byte[] compile(Expr.Function function, String name) {
+            ClassFile.Code init = classFile.newCode();
+            init.local(ClassFile.ALOAD, THIS_LOCAL);
+            init.local(ClassFile.ALOAD, 1);
+            init.invokespecial(CODE, "<init>", "(" + OBJECT_ARRAY + ")V");
+            init.op(ClassFile.RETURN, 0);
+            classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(" + OBJECT_ARRAY + ")V", init);
+
+            code.local(ClassFile.ALOAD, THIS_LOCAL);
+            code.getfield(CODE, "constants", OBJECT_ARRAY);
+            code.local(ClassFile.ASTORE, CONSTANTS_LOCAL);
+
+            // every slot gets a local up front, which keeps the verifier happy about locals declared in branches
+            for (int slot = 1; slot < function.frameSize; ++slot) {
+                code.local(ClassFile.ALOAD, FRAME_LOCAL);
+                code.pushInt(slot);
+                code.op(ClassFile.AALOAD, -1);
+                code.local(ClassFile.ASTORE, slotLocal(slot));
+            }
+
+            for (Stmt stmt : function.body) {
+                compileStmt(stmt);
+            }
+
+            code.op(ClassFile.ACONST_NULL, 1);
+            code.op(ClassFile.ARETURN, -1);
+            classFile.addMethod(ClassFile.ACC_PUBLIC, "invoke", "(" + OBJECT_ARRAY + ")" + OBJECT, code);
+
+            return classFile.toByteArray(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER, name, CODE);
+        }
+
+        Object[] constants() {
+            return constants.toArray();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            compileExpr(stmt.expression);
+            code.op(ClassFile.POP, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            compileExpr(stmt.expression);
+            code.invokestatic(RUNTIME, "print", "(" + OBJECT + ")V");
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.resolved != null) {
+                loadConstant(stmt.resolved);
+                compileExpr(stmt.initializer);
+                code.invokestatic(RUNTIME, "setGlobal", "(" + OBJECT + OBJECT + ")V");
+            } else {
+                compileExpr(stmt.initializer);
+                code.local(ClassFile.ASTORE, slotLocal(stmt.slot));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                compileStmt(statement);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            compileCondition(stmt.condition);
+            int elseJump = code.jump(ClassFile.IFEQ);
+            compileStmt(stmt.thenBranch);
+
+            if (stmt.elseBranch == null) {
+                code.patchJump(elseJump, code.position());
+                return null;
+            }
+
+            int endJump = code.jump(ClassFile.GOTO);
+            code.patchJump(elseJump, code.position());
+            compileStmt(stmt.elseBranch);
+            code.patchJump(endJump, code.position());
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            int loopStart = code.position();
+            compileCondition(stmt.condition);
+            int exitJump = code.jump(ClassFile.IFEQ);
+            compileStmt(stmt.statement);
+            code.jumpTo(ClassFile.GOTO, loopStart);
+            code.patchJump(exitJump, code.position());
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            return visitWhileStmt(stmt.loop);
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.expression != null) {
+                compileExpr(stmt.expression);
+            } else {
+                code.op(ClassFile.ACONST_NULL, 1);
+            }
+            code.op(ClassFile.ARETURN, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitFusedExpr(Expr.Fused expr) {
+            compileExpr(expr.original);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            int count = expr.arguments.size();
+
+            // callee and arity are checked before the arguments are evaluated, as in the interpreter
+            compileExpr(expr.callee);
+            code.pushInt(count);
+            loadConstant(expr.paren);
+            code.invokestatic(RUNTIME, "checkCall", "(" + OBJECT + "I" + OBJECT + ")" + OBJECT);
+
+            if (count <= 4 && !expr.tail) {
+                StringBuilder descriptor = new StringBuilder("(" + OBJECT);
+                for (Expr argument : expr.arguments) {
+                    compileExpr(argument);
+                    descriptor.append(OBJECT);
+                }
+
+                loadConstant(expr.paren);
+                loadConstant(interpreter);
+                code.invokestatic(RUNTIME, "call" + count, descriptor + OBJECT + OBJECT + ")" + OBJECT);
+                return null;
+            }
+
+            code.pushInt(count);
+            code.typeOp(ClassFile.ANEWARRAY, "java/lang/Object");
+            for (int i = 0; i < count; ++i) {
+                code.op(ClassFile.DUP, 1);
+                code.pushInt(i);
+                compileExpr(expr.arguments.get(i));
+                code.op(ClassFile.AASTORE, -3);
+            }
+
+            loadConstant(expr.paren);
+            loadConstant(interpreter);
+            String method = expr.tail ? "tailCall" : "call";
+            code.invokestatic(RUNTIME, method, "(" + OBJECT + OBJECT_ARRAY + OBJECT + OBJECT + ")" + OBJECT);
+            return null;
+        }
+
+        @Override
+        public Void visitOrExpr(Expr.Or expr) {
+            compileExpr(expr.left);
+            code.op(ClassFile.DUP, 1);
+            code.invokestatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+            int endJump = code.jump(ClassFile.IFNE);
+            code.op(ClassFile.POP, -1);
+            compileExpr(expr.right);
+            code.patchJump(endJump, code.position());
+            return null;
+        }
+
+        @Override
+        public Void visitAndExpr(Expr.And expr) {
+            compileExpr(expr.left);
+            code.op(ClassFile.DUP, 1);
+            code.invokestatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+            int endJump = code.jump(ClassFile.IFEQ);
+            code.op(ClassFile.POP, -1);
+            compileExpr(expr.right);
+            code.patchJump(endJump, code.position());
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.resolved != null) {
+                loadConstant(expr.resolved);
+                compileExpr(expr.value);
+                code.op(ClassFile.DUP_X1, 1);
+                code.invokestatic(RUNTIME, "setGlobal", "(" + OBJECT + OBJECT + ")V");
+            } else if (expr.depth == 0) {
+                compileExpr(expr.value);
+                code.op(ClassFile.DUP, 1);
+                code.local(ClassFile.ASTORE, slotLocal(expr.slot));
+            } else {
+                loadCaptures();
+                code.pushInt(expr.capture);
+                compileExpr(expr.value);
+                code.op(ClassFile.DUP_X2, 1);
+                code.invokestatic(RUNTIME, "setCapture", "(" + OBJECT + "I" + OBJECT + ")V");
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.Var expr) {
+            if (expr.resolved != null) {
+                loadConstant(expr.resolved);
+                code.invokestatic(RUNTIME, "getGlobal", "(" + OBJECT + ")" + OBJECT);
+            } else if (expr.depth == 0) {
+                code.local(ClassFile.ALOAD, slotLocal(expr.slot));
+            } else {
+                loadCaptures();
+                code.pushInt(expr.capture);
+                code.invokestatic(RUNTIME, "getCapture", "(" + OBJECT + "I)" + OBJECT);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            compileExpr(expr.left);
+
+            if (expr.operator.type == TokenType.COMMA) {
+                code.op(ClassFile.POP, -1);
+                compileExpr(expr.right);
+                return null;
+            }
+
+            compileExpr(expr.right);
+
+            switch (expr.operator.type) {
+                case PLUS: arithmetic("add", expr.operator); break;
+                case MINUS: arithmetic("subtract", expr.operator); break;
+                case STAR: arithmetic("multiply", expr.operator); break;
+                case SLASH: arithmetic("divide", expr.operator); break;
+                case GREATER: arithmetic("greater", expr.operator); break;
+                case GREATER_EQUAL: arithmetic("greaterEqual", expr.operator); break;
+                case LESS: arithmetic("less", expr.operator); break;
+                case LESS_EQUAL: arithmetic("lessEqual", expr.operator); break;
+                case EQUAL_EQUAL:
+                    code.invokestatic(RUNTIME, "equal", "(" + OBJECT + OBJECT + ")" + OBJECT);
+                    break;
+                case BANG_EQUAL:
+                    code.invokestatic(RUNTIME, "notEqual", "(" + OBJECT + OBJECT + ")" + OBJECT);
+                    break;
+                default:
+                    throw new Unsupported();
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            compileExpr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if (expr.value == null) {
+                code.op(ClassFile.ACONST_NULL, 1);
+            } else if (expr.value instanceof Boolean) {
+                code.getstatic("java/lang/Boolean", (Boolean) expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+            } else {
+                loadConstant(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            compileCondition(expr.condition);
+            int falseJump = code.jump(ClassFile.IFEQ);
+            int depth = code.stackDepth();
+            compileExpr(expr.trueBranch);
+            int endJump = code.jump(ClassFile.GOTO);
+
+            code.setStackDepth(depth);
+            code.patchJump(falseJump, code.position());
+            compileExpr(expr.falseBranch);
+            code.patchJump(endJump, code.position());
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            compileExpr(expr.right);
+            loadConstant(expr.operator);
+
+            switch (expr.operator.type) {
+                case MINUS:
+                    code.invokestatic(RUNTIME, "negate", "(" + OBJECT + OBJECT + ")" + OBJECT);
+                    break;
+                case BANG:
+                    code.invokestatic(RUNTIME, "not", "(" + OBJECT + OBJECT + ")" + OBJECT);
+                    break;
+                default:
+                    throw new Unsupported();
+            }
+            return null;
+        }
+
+        private void compileExpr(Expr expr) {
+            expr.accept(this);
+        }
+
+        private void compileStmt(Stmt stmt) {
+            if (stmt == null) {
+                return;
+            }
+            stmt.accept(this);
+        }
+
+        private void compileCondition(Expr condition) {
+            compileExpr(condition);
+            code.invokestatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+        }
+
+        private void arithmetic(String method, Token operator) {
+            loadConstant(operator);
+            code.invokestatic(RUNTIME, method, "(" + OBJECT + OBJECT + OBJECT + ")" + OBJECT);
+        }
+
+        private void loadConstant(Object value) {
+            Integer index = constantIndex.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndex.put(value, index);
+            }
+
+            code.local(ClassFile.ALOAD, CONSTANTS_LOCAL);
+            code.pushInt(index);
+            code.op(ClassFile.AALOAD, -1);
+        }
+
+        // slot 0 of the frame
+        private void loadCaptures() {
+            code.local(ClassFile.ALOAD, FRAME_LOCAL);
+            code.op(ClassFile.ICONST_0, 1);
+            code.op(ClassFile.AALOAD, -1);
+        }
+
+        private int slotLocal(int slot) {
+            return FIRST_SLOT_LOCAL + slot - 1;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.iswoqqe.lox;
+
+// Base class of the classes generated by Jit. Generated classes live in their own class loader, so
+// everything they touch here or in JitRuntime has to be public.
+public abstract class JitCode {
+    protected final Object[] constants;
+
+    protected JitCode(Object[] constants) {
+        this.constants = constants;
+    }
+
+    // runs the function body on a frame laid out as for Function.call
+    public abstract Object invoke(Object[] frame);
+}
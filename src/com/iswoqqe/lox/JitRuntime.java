@@ -0,0 +1,173 @@
+package com.iswoqqe.lox;
+
+import java.util.Arrays;
+
+// Operations called from JIT generated code. Tokens, variables and the interpreter are passed as Object
+// because their classes are not visible from the generated classes' loader.
+public final class JitRuntime {
+    private JitRuntime() {}
+
+    public static Object add(Object left, Object right, Object operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + right;
+        }
+        throw new RuntimeError((Token) operator, "Operands must be numbers or strings.");
+    }
+
+    public static Object subtract(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    public static Object multiply(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    public static Object divide(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left / (double) right;
+    }
+
+    public static Object greater(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    public static Object greaterEqual(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    public static Object less(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    public static Object lessEqual(Object left, Object right, Object operator) {
+        Interpreter.checkNumbers((Token) operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    public static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    public static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    public static Object negate(Object right, Object operator) {
+        Interpreter.checkNumber((Token) operator, right);
+        return -(double) right;
+    }
+
+    public static Object not(Object right, Object operator) {
+        Interpreter.checkNumber((Token) operator, right);
+        return !Interpreter.isTruthy(right);
+    }
+
+    public static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    public static Object getGlobal(Object variable) {
+        return ((Variable) variable).value;
+    }
+
+    public static void setGlobal(Object variable, Object value) {
+        ((Variable) variable).value = value;
+    }
+
+    public static Object getCapture(Object captures, int index) {
+        return ((Variable[]) captures)[index].value;
+    }
+
+    public static void setCapture(Object captures, int index, Object value) {
+        ((Variable[]) captures)[index].value = value;
+    }
+
+    public static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    public static Object checkCall(Object callee, int argumentCount, Object paren) {
+        if (!(callee instanceof Callable)) {
+            throw new RuntimeError((Token) paren, "Can only call functions.");
+        }
+
+        Callable function = (Callable) callee;
+
+        if (function.arity() != argumentCount) {
+            throw new RuntimeError((Token) paren,
+                    "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+        }
+
+        return function;
+    }
+
+    // the calls take the paren to raise errors of natives at, see Interpreter.NativeError
+    private static RuntimeError error(Interpreter.NativeError error, Object paren) {
+        return new RuntimeError((Token) paren, error.getMessage());
+    }
+
+    public static Object call(Object function, Object[] arguments, Object paren, Object interpreter) {
+        try {
+            return ((Callable) function).call((Interpreter) interpreter, Arrays.asList(arguments));
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+
+    // Lox functions are handed to the interpreter's trampoline, see Interpreter.executeFunction
+    public static Object tailCall(Object function, Object[] arguments, Object paren, Object interpreter) {
+        if (function instanceof Function) {
+            return ((Interpreter) interpreter).tailCall((Function) function, arguments);
+        }
+        return call(function, arguments, paren, interpreter);
+    }
+
+    public static Object call0(Object function, Object paren, Object interpreter) {
+        try {
+            return ((Callable) function).call0((Interpreter) interpreter);
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+
+    public static Object call1(Object function, Object a0, Object paren, Object interpreter) {
+        try {
+            return ((Callable) function).call1((Interpreter) interpreter, a0);
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+
+    public static Object call2(Object function, Object a0, Object a1, Object paren, Object interpreter) {
+        try {
+            return ((Callable) function).call2((Interpreter) interpreter, a0, a1);
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+
+    public static Object call3(Object function, Object a0, Object a1, Object a2, Object paren, Object interpreter) {
+        try {
+            return ((Callable) function).call3((Interpreter) interpreter, a0, a1, a2);
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+
+    public static Object call4(Object function, Object a0, Object a1, Object a2, Object a3, Object paren,
+                               Object interpreter) {
+        try {
+            return ((Callable) function).call4((Interpreter) interpreter, a0, a1, a2, a3);
+        } catch (Interpreter.NativeError error) {
+            throw error(error, paren);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Rewrites while loops, and so for loops, after the other passes. A pure arithmetic expression that only reads
+// variables the loop never changes is computed once per run of the loop: its value is kept in a fresh slot
+// that is cleared before the loop, and the first evaluation fills it. The expression is still evaluated where
+// it was, so an error is raised by the original token at the original time. Loops that count a number
+// variable to such a limit become Stmt.CountedLoop.
+class LoopOptimizer extends AstRewriter {
+    // smaller expressions cost less than the check that replaces them
+    private static final int MIN_HOISTED_SIZE = 3;
+
+    private static class Frame {
+        int size;
+
+        Frame(int size) {
+            this.size = size;
+        }
+    }
+
+    private static class Loop {
+        final Uses uses;
+        // statements clearing the slots of expressions hoisted out of this loop
+        final List<Stmt> clears = new ArrayList<>();
+
+        Loop(Uses uses) {
+            this.uses = uses;
+        }
+    }
+
+    private final List<Frame> frames = new ArrayList<>();
+    // loops of the function being rewritten, outermost first
+    private List<Loop> loops = new ArrayList<>();
+
+    LoopOptimizer(int frameSize) {
+        frames.add(new Frame(frameSize));
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    int getFrameSize() {
+        return frames.get(0).size;
+    }
+
+    private Frame frame() {
+        return frames.get(frames.size() - 1);
+    }
+
+    @Override
+    Expr rewrite(Expr expr) {
+        if (expr == null || loops.isEmpty() || !isArithmetic(expr) || size(expr) < MIN_HOISTED_SIZE) {
+            return super.rewrite(expr);
+        }
+
+        // invariant in a loop means invariant in the loops it contains
+        for (Loop loop : loops) {
+            if (isInvariant(expr, loop.uses)) {
+                return hoist(expr, loop);
+            }
+        }
+        return super.rewrite(expr);
+    }
+
+    // The value of an arithmetic operator is a number or a string, never falsy, so a cleared slot can hold nil
+    // and the slot can be tested with or.
+    private static boolean isArithmetic(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary) expr).operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+            }
+        } else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        }
+        return false;
+    }
+
+    // number of nodes, or -1 if evaluating the expression can call or assign
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Var) {
+            return 1;
+        } else if (expr instanceof Expr.Binary) {
+            return sum(((Expr.Binary) expr).left, ((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Unary) {
+            return sum(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            return sum(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary) expr;
+            return sum(ternary.condition, ternary.trueBranch, ternary.falseBranch);
+        } else if (expr instanceof Expr.Or) {
+            return sum(((Expr.Or) expr).left, ((Expr.Or) expr).right);
+        } else if (expr instanceof Expr.And) {
+            return sum(((Expr.And) expr).left, ((Expr.And) expr).right);
+        }
+        return -1;
+    }
+
+    private static int sum(Expr... children) {
+        int size = 1;
+
+        for (Expr child : children) {
+            int childSize = size(child);
+
+            if (childSize < 0) {
+                return -1;
+            }
+            size += childSize;
+        }
+        return size;
+    }
+
+    // true if a pure expression reads no variable the loop can change
+    private boolean isInvariant(Expr expr, Uses loop) {
+        if (expr instanceof Expr.Var) {
+            return isInvariant((Expr.Var) expr, loop);
+        } else if (expr instanceof Expr.Binary) {
+            return isInvariant(((Expr.Binary) expr).left, loop) && isInvariant(((Expr.Binary) expr).right, loop);
+        } else if (expr instanceof Expr.Unary) {
+            return isInvariant(((Expr.Unary) expr).right, loop);
+        } else if (expr instanceof Expr.Grouping) {
+            return isInvariant(((Expr.Grouping) expr).expression, loop);
+        } else if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary) expr;
+            return isInvariant(ternary.condition, loop) && isInvariant(ternary.trueBranch, loop)
+                    && isInvariant(ternary.falseBranch, loop);
+        } else if (expr instanceof Expr.Or) {
+            return isInvariant(((Expr.Or) expr).left, loop) && isInvariant(((Expr.Or) expr).right, loop);
+        } else if (expr instanceof Expr.And) {
+            return isInvariant(((Expr.And) expr).left, loop) && isInvariant(((Expr.And) expr).right, loop);
+        }
+        return expr instanceof Expr.Literal;
+    }
+
+    private boolean isInvariant(Expr.Var var, Uses loop) {
+        if (var.resolved != null) {
+            return !loop.calls && !loop.assignedGlobals.contains(var.resolved);
+        }
+
+        if (loop.assigned.contains(Uses.key(var.depth, var.slot))) {
+            return false;
+        }
+
+        // only a call can change a box
+        return !loop.calls || (var.depth == 0 && !var.boxed);
+    }
+
+    // expr becomes ($n or ($n = expr))
+    private Expr hoist(Expr expr, Loop loop) {
+        int slot = frame().size++;
+        Token name = new Token(TokenType.IDENTIFIER, "$" + slot, null, 0, 0, -1);
+
+        Expr.Assign clear = new Expr.Assign(name, null, new Expr.Literal(null));
+        clear.slot = slot;
+        loop.clears.add(new Stmt.Expression(clear));
+
+        Expr.Var var = new Expr.Var(name, null);
+        var.slot = slot;
+        Expr.Assign assign = new Expr.Assign(name, null, expr);
+        assign.slot = slot;
+        return new Expr.Or(var, assign);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        List<Loop> enclosing = loops;
+        Frame frame = new Frame(expr.frameSize);
+        loops = new ArrayList<>();
+        frames.add(frame);
+
+        try {
+            List<Stmt> body = rewrite(expr.body);
+            Expr.Function function = new Expr.Function(expr.parameters, body);
+            function.frameSize = frame.size;
+            function.captures = expr.captures;
+            function.boxedParameters = expr.boxedParameters;
+            function.memoizable = expr.memoizable;
+            return function;
+        } finally {
+            frames.remove(frames.size() - 1);
+            loops = enclosing;
+        }
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop(Uses.of(stmt.condition, stmt.statement));
+        Stmt.CountedLoop counted = counted(stmt, loop.uses);
+        Stmt rewritten;
+
+        loops.add(loop);
+
+        try {
+            if (counted != null) {
+                // the limit is evaluated once anyway
+                rewritten = new Stmt.CountedLoop(counted.condition, branch(counted.body), counted.increment);
+            } else {
+                rewritten = new Stmt.While(rewrite(stmt.condition), branch(stmt.statement));
+            }
+        } finally {
+            loops.remove(loops.size() - 1);
+        }
+
+        if (loop.clears.isEmpty()) {
+            return rewritten;
+        }
+
+        List<Stmt> statements = new ArrayList<>(loop.clears);
+        statements.add(rewritten);
+        return new Stmt.Block(statements);
+    }
+
+    // Matches while (i < limit) { ...; i = i + step; } where only the last statement changes i, the limit is
+    // invariant and the step is a number literal. Other comparisons and subtracting the step work the same.
+    // The returned loop is not rewritten yet.
+    private Stmt.CountedLoop counted(Stmt.While stmt, Uses loop) {
+        if (!(stmt.condition instanceof Expr.Binary)) {
+            return null;
+        }
+
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+
+        if (!(condition.left instanceof Expr.Var) || size(condition.right) < 0
+                || !isInvariant(condition.right, loop)) {
+            return null;
+        }
+
+        Expr.Var counter = (Expr.Var) condition.left;
+
+        // engines keep the counter in a global or a slot of their own frame
+        if (counter.resolved == null && (counter.depth > 0 || counter.boxed)) {
+            return null;
+        }
+
+        List<Stmt> statements = stmt.statement instanceof Stmt.Block ? ((Stmt.Block) stmt.statement).statements
+                : Collections.singletonList(stmt.statement);
+
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression)) {
+            return null;
+        }
+
+        Expr last = ((Stmt.Expression) statements.get(statements.size() - 1)).expression;
+
+        if (!(last instanceof Expr.Assign) || !isStep((Expr.Assign) last, counter)) {
+            return null;
+        }
+
+        List<Stmt> body = statements.subList(0, statements.size() - 1);
+
+        if (!isInvariant(counter, Uses.of(condition.right, new Stmt.Block(body)))) {
+            return null;
+        }
+
+        Stmt statement = body.size() == 1 ? body.get(0) : new Stmt.Block(new ArrayList<>(body));
+        return new Stmt.CountedLoop(condition, statement, (Expr.Assign) last);
+    }
+
+    // true for counter = counter + step and counter = counter - step
+    private static boolean isStep(Expr.Assign assign, Expr.Var counter) {
+        if (!(assign.value instanceof Expr.Binary) || !same(assign.resolved, assign.depth, assign.slot, counter)) {
+            return false;
+        }
+
+        Expr.Binary value = (Expr.Binary) assign.value;
+        TokenType type = value.operator.type;
+
+        if ((type != TokenType.PLUS && type != TokenType.MINUS) || !(value.left instanceof Expr.Var)) {
+            return false;
+        }
+
+        Expr.Var var = (Expr.Var) value.left;
+        return same(var.resolved, var.depth, var.slot, counter) && value.right instanceof Expr.Literal
+                && ((Expr.Literal) value.right).value instanceof Double;
+    }
+
+    private static boolean same(Variable resolved, int depth, int slot, Expr.Var var) {
+        if (resolved != null || var.resolved != null) {
+            return resolved == var.resolved;
+        }
+        return depth == var.depth && slot == var.slot;
+    }
+
+    // What running some code can change.
+    private static class Uses implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        // depth and slot of assigned locals, see key
+        final Set<Long> assigned = new HashSet<>();
+        final Set<Variable> assignedGlobals = new HashSet<>();
+        // a call can run any function, which can change globals and boxes
+        boolean calls = false;
+        // number of functions entered
+        private int level = 0;
+
+        static long key(int depth, int slot) {
+            return (long) depth << 32 | slot;
+        }
+
+        static Uses of(Expr expr, Stmt stmt) {
+            Uses uses = new Uses();
+            uses.expression(expr);
+            uses.statement(stmt);
+            return uses;
+        }
+
+        private void statements(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt != null) {
+                stmt.accept(this);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr != null) {
+                expr.accept(this);
+            }
+        }
+
+        private void use(Variable resolved, int depth, int slot, boolean assign) {
+            if (resolved != null) {
+                if (assign && level == 0) {
+                    assignedGlobals.add(resolved);
+                }
+            } else if (assign && level == 0) {
+                assigned.add(key(depth, slot));
+            }
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            if (level == 0) {
+                calls = true;
+            }
+
+            expression(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expression(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expression(expr.condition);
+            expression(expr.trueBranch);
+            expression(expr.falseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVarExpr(Expr.Var expr) {
+            use(expr.resolved, expr.depth, expr.slot, false);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            use(expr.resolved, expr.depth, expr.slot, true);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitOrExpr(Expr.Or expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitAndExpr(Expr.And expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            level += 1;
+            statements(expr.body);
+            level -= 1;
+            return null;
+        }
+
+        @Override
+        public Void visitFusedExpr(Expr.Fused expr) {
+            expression(expr.original);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            use(stmt.resolved, 0, stmt.slot, true);
+            expression(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expression(stmt.condition);
+            statement(stmt.statement);
+            return null;
+        }
+
+        @Override
+        public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            return visitWhileStmt(stmt.loop);
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+    }
+}
@@ -3,30 +3,110 @@ package com.iswoqqe.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
+    private enum Engine { TREE, SWITCH, SPEC, JIT, CLOSURE, VM, FLAT }
+
     private static final Interpreter interpreter = new Interpreter();
+    private static final ClosureCompiler closureCompiler = new ClosureCompiler(interpreter);
+    private static final VM vm = new VM(interpreter);
+    private static final FlatInterpreter flatInterpreter = new FlatInterpreter(interpreter);
+    private static Engine engine = Engine.TREE;
+    private static AstCache cache = new AstCache(cacheDirectory(), 64 * 1024 * 1024);
     private static boolean hadRuntimeError = false;
     private static boolean hadError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("usage: jlox [script]");
-            System.exit(64); // command line usage error
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> files = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = parseEngine(arg.substring("--engine=".length()));
+            } else if (arg.startsWith("--memo=")) {
+                interpreter.setAutoMemo(parseSize(arg.substring("--memo=".length())));
+            } else if (arg.equals("--no-cache")) {
+                cache = null;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        interpreter.setSwitchDispatch(engine == Engine.SWITCH);
+        interpreter.setSpecializing(engine == Engine.SPEC);
+        interpreter.setJit(engine == Engine.JIT);
+
+        if (files.size() > 1) {
+            usage();
+        } else if (files.size() == 1) {
+            runFile(files.get(0));
         } else {
             runPrompt();
         }
     }
 
+    // JLOX_CACHE overrides the default ~/.cache/jlox
+    private static Path cacheDirectory() {
+        String directory = System.getenv("JLOX_CACHE");
+
+        if (directory != null) {
+            return Paths.get(directory);
+        }
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    private static Engine parseEngine(String name) {
+        for (Engine e : Engine.values()) {
+            if (e.name().equalsIgnoreCase(name)) {
+                return e;
+            }
+        }
+        usage();
+        return null;
+    }
+
+    private static int parseSize(String size) {
+        try {
+            return Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            usage();
+            return 0;
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: jlox [--engine=tree|switch|spec|jit|closure|vm|flat] [--memo=size] [--no-cache] "
+                + "[script]");
+        System.exit(64); // command line usage error
+    }
+
     private static void runFile(String filename) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(filename));
-        run(new String(bytes, StandardCharsets.UTF_8.name()));
+        // the mapped file is scanned while parsing, it is never read into a String or a token list
+        ByteBuffer source = Scanner.map(Paths.get(filename));
+        Program program = cache != null ? cache.load(source, interpreter.getGlobalsRef()) : null;
+
+        if (program == null) {
+            List<Stmt> statements = null;
+
+            if (source.limit() >= ParallelParser.MIN_SOURCE_SIZE) {
+                statements = ParallelParser.parse(source);
+            }
+
+            program = statements != null ? resolve(statements, true) : compile(new Scanner(source), true);
+
+            // stored before running, the interpreters annotate the tree as they go
+            if (program != null && cache != null) {
+                cache.store(source, program);
+            }
+        }
+
+        if (program != null) {
+            execute(program);
+        }
 
         if (hadError) {
             System.exit(65); // data format error
@@ -40,13 +120,21 @@ public class Lox {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
-        while (true) {
+        boolean done = false;
+
+        while (!done) {
             StringBuilder builder = new StringBuilder();
 
             while (true) {
                 System.out.print("> ");
                 String tmp = reader.readLine();
 
+                // end of input runs what was entered so far
+                if (tmp == null) {
+                    done = true;
+                    break;
+                }
+
                 if (tmp.equals("")) {
                     break;
                 }
@@ -61,21 +149,32 @@ public class Lox {
         }
     }
 
+    // globals outlive each input, so no input is the whole program
     private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        Program program = compile(new Scanner(source), false);
 
-        if (hadError) {
-            System.out.println("Scan error.");
-            return;
+        if (program != null) {
+            execute(program);
         }
+    }
 
-        Parser parser = new Parser(tokens);
+    // null if there were errors
+    private static Program compile(Scanner scanner, boolean wholeProgram) {
+        Parser parser = new Parser(scanner);
         List<Stmt> statements = parser.parse();
 
+        if (scanner.hadError()) {
+            System.out.println("Scan error.");
+            return null;
+        }
+
+        return resolve(statements, wholeProgram);
+    }
+
+    private static Program resolve(List<Stmt> statements, boolean wholeProgram) {
         if (hadError) {
             System.out.println("Parse error.");
-            return;
+            return null;
         }
 
         Resolver resolver = new Resolver(statements, interpreter.getGlobalsRef());
@@ -83,17 +182,61 @@ public class Lox {
 
         if (hadError) {
             System.out.println("Resolve error.");
-            return;
+            return null;
         }
 
-        interpreter.defineNewGlobals(resolver.getNewGlobalsRef());
+        return optimize(statements, resolver.getNewGlobalsRef(), resolver.getFrameSize(), wholeProgram);
+    }
+
+    // The passes between the Resolver and the engines. Unless the statements are the whole program, later code
+    // may assign any global, as each input of the prompt is compiled on its own.
+    static Program optimize(List<Stmt> statements, Globals newGlobals, int frameSize, boolean wholeProgram) {
+        Inliner inliner = new Inliner(frameSize, wholeProgram);
+        statements = inliner.inline(statements);
+        statements = new ConstantFolder().fold(statements);
+        LoopOptimizer loopOptimizer = new LoopOptimizer(inliner.getFrameSize());
+        statements = loopOptimizer.optimize(statements);
+        statements = new Superinstructions().fuse(statements);
+
+        return new Program(statements, newGlobals, loopOptimizer.getFrameSize());
+    }
+
+    private static void execute(Program program) {
+        interpreter.defineNewGlobals(program.newGlobals);
 
         ASTPrinter printer = new ASTPrinter();
-        for (Stmt stmt : statements) {
+
+        if (engine == Engine.FLAT) {
+            // only the arrays are walked from here on, the object tree can be collected
+            FlatAst ast = FlatAst.of(program);
+            int root = ast.root();
+
+            for (int i = 0; i < ast.statementCount(root); ++i) {
+                System.out.println(printer.getString(ast, ast.statement(root, i)));
+            }
+
+            flatInterpreter.interpret(ast);
+            return;
+        }
+
+        for (Stmt stmt : program.statements) {
             System.out.println(printer.getString(stmt));
         }
 
-        interpreter.interpret(statements);
+        switch (engine) {
+            case TREE:
+            case SWITCH:
+            case SPEC:
+            case JIT:
+                interpreter.interpret(program.statements, program.frameSize);
+                break;
+            case CLOSURE:
+                closureCompiler.interpret(program.statements, program.frameSize);
+                break;
+            case VM:
+                vm.interpret(program.statements, program.frameSize);
+                break;
+        }
     }
 
     static void runtimeError(RuntimeError error) {
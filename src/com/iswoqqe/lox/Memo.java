@@ -0,0 +1,143 @@
+package com.iswoqqe.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A function with a bounded cache of its results, made by the memo builtin and by --memo for functions the
+// Resolver finds memoizable. Calls are keyed on their arguments: a lone argument is its own key, more are
+// wrapped in a Key. Only numbers, strings, booleans and nil make keys, calls with other arguments always run
+// the function. When the cache is full the least recently used result is dropped.
+class Memo implements Callable {
+    // stands for nil, as a key and as a cached result
+    private static final Object NIL = new Object();
+    // the key of every call without arguments
+    private static final Object NO_ARGUMENTS = new Object();
+
+    private static final class Key {
+        private final Object[] arguments;
+        private final int hash;
+
+        Key(Object[] arguments) {
+            this.arguments = arguments;
+            this.hash = Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(arguments, ((Key) other).arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Callable function;
+    private final Map<Object, Object> results;
+
+    Memo(Callable function, int size) {
+        this.function = function;
+        // in access order, so the eldest entry is the least recently used
+        this.results = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    // null if the value cannot be part of a key
+    private static Object argumentKey(Object value) {
+        if (value == null) {
+            return NIL;
+        }
+        if (value instanceof Double || value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        return null;
+    }
+
+    // null if one of the values cannot be part of a key
+    private static Object key(Object... values) {
+        Object[] keys = new Object[values.length];
+
+        for (int i = 0; i < values.length; ++i) {
+            keys[i] = argumentKey(values[i]);
+
+            if (keys[i] == null) {
+                return null;
+            }
+        }
+        return new Key(keys);
+    }
+
+    // null on a miss
+    private Object lookup(Object key) {
+        return key != null ? results.get(key) : null;
+    }
+
+    private Object store(Object key, Object result) {
+        if (key != null) {
+            results.put(key, result == null ? NIL : result);
+        }
+        return result;
+    }
+
+    private static Object result(Object cached) {
+        return cached == NIL ? null : cached;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Object key = key(arguments.toArray());
+        Object cached = lookup(key);
+        return cached != null ? result(cached) : store(key, function.call(interpreter, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        Object cached = lookup(NO_ARGUMENTS);
+        return cached != null ? result(cached) : store(NO_ARGUMENTS, function.call0(interpreter));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        Object key = argumentKey(a0);
+        Object cached = lookup(key);
+        return cached != null ? result(cached) : store(key, function.call1(interpreter, a0));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        Object key = key(a0, a1);
+        Object cached = lookup(key);
+        return cached != null ? result(cached) : store(key, function.call2(interpreter, a0, a1));
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        Object key = key(a0, a1, a2);
+        Object cached = lookup(key);
+        return cached != null ? result(cached) : store(key, function.call3(interpreter, a0, a1, a2));
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a0, Object a1, Object a2, Object a3) {
+        Object key = key(a0, a1, a2, a3);
+        Object cached = lookup(key);
+        return cached != null ? result(cached) : store(key, function.call4(interpreter, a0, a1, a2, a3));
+    }
+
+    @Override
+    public int arity() {
+        return function.arity();
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package com.iswoqqe.lox;
+
+import java.nio.ByteBuffer;
+
+// Value of a scanned number literal, read straight from the source bytes. Literals with at most 15 or so
+// significant digits and a small exponent are exact in double arithmetic and need a single rounding
+// (Clinger's fast path), so the result equals Double.parseDouble. Anything else, and anything the scanner
+// let through that is not a valid number like "1e", is handed to Double.parseDouble itself.
+final class NumberLiteral {
+    private static final long MAX_EXACT = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    private NumberLiteral() {}
+
+    static double parse(ByteBuffer source, int from, int to) {
+        long mantissa = 0;
+        int exponent = 0;
+        int i = from;
+
+        for (; i < to && isDigit(source.get(i)); ++i) {
+            mantissa = 10 * mantissa + (source.get(i) - '0');
+            if (mantissa >= MAX_EXACT) {
+                return slowPath(source, from, to);
+            }
+        }
+
+        if (i < to && source.get(i) == '.') {
+            for (++i; i < to && isDigit(source.get(i)); ++i) {
+                mantissa = 10 * mantissa + (source.get(i) - '0');
+                exponent -= 1;
+                if (mantissa >= MAX_EXACT) {
+                    return slowPath(source, from, to);
+                }
+            }
+        }
+
+        if (i < to) {
+            // exponent, 'e' or 'E' and an optional '-'
+            boolean negative = ++i < to && source.get(i) == '-';
+            if (negative) {
+                ++i;
+            }
+
+            if (i == to) {
+                return slowPath(source, from, to);
+            }
+
+            int value = 0;
+            for (; i < to; ++i) {
+                value = 10 * value + (source.get(i) - '0');
+                if (value > 1000) {
+                    return slowPath(source, from, to);
+                }
+            }
+
+            exponent += negative ? -value : value;
+        }
+
+        if (mantissa == 0) {
+            return 0.0;
+        }
+        if (exponent < -22 || exponent > 22) {
+            return slowPath(source, from, to);
+        }
+
+        // both operands are exact, so the one rounding of the multiply or divide is the correct one
+        return exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+    }
+
+    private static double slowPath(ByteBuffer source, int from, int to) {
+        // number literals are ASCII
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char) source.get(from + i);
+        }
+        return Double.parseDouble(new String(chars));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
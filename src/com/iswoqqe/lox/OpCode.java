@@ -0,0 +1,47 @@
+package com.iswoqqe.lox;
+
+final class OpCode {
+    static final byte CONSTANT = 0;      // u32 constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    static final byte GET_LOCAL = 5;     // u16 slot
+    static final byte SET_LOCAL = 6;     // u16 slot
+    static final byte GET_CAPTURE = 7;   // u16 index in the capture array
+    static final byte SET_CAPTURE = 8;   // u16 index in the capture array
+    static final byte GET_GLOBAL = 9;    // u32 constant index of the Variable
+    static final byte SET_GLOBAL = 10;   // u32 constant index of the Variable
+
+    static final byte ADD = 11;
+    static final byte SUBTRACT = 12;
+    static final byte MULTIPLY = 13;
+    static final byte DIVIDE = 14;
+    static final byte GREATER = 15;
+    static final byte GREATER_EQUAL = 16;
+    static final byte LESS = 17;
+    static final byte LESS_EQUAL = 18;
+    static final byte EQUAL = 19;
+    static final byte NOT_EQUAL = 20;
+    static final byte NEGATE = 21;
+    static final byte NOT = 22;
+
+    static final byte JUMP = 23;          // u32 forward offset
+    static final byte JUMP_IF_FALSE = 24; // u32 forward offset, leaves condition on the stack
+    static final byte LOOP = 25;          // u32 backward offset
+
+    static final byte CALL = 26;          // u8 argument count
+    static final byte CLOSURE = 27;       // u32 constant index of the Prototype
+    static final byte RETURN = 28;
+    static final byte PRINT = 29;
+    static final byte TAIL_CALL = 30;     // u8 argument count, replaces the current frame when calling a VMFunction
+
+    static final byte GET_BOXED = 31;     // u16 slot holding a Variable
+    static final byte SET_BOXED = 32;     // u16 slot holding a Variable
+    static final byte DEFINE_BOXED = 33;  // u16 slot, stores a new Variable holding the value
+
+    static final byte CHECK_CALL = 34;    // u8 argument count, checks the callee on top before its arguments run
+
+    private OpCode() {}
+}
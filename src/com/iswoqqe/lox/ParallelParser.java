@@ -0,0 +1,181 @@
+package com.iswoqqe.lox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Splits a large source into chunks of top level statements and scans and parses them in parallel. A chunk
+// ends after a ';' outside any parentheses, braces, strings and comments that is not followed by 'else', so
+// no statement spans two chunks. Each chunk's scanner starts at the chunk's line and column, which keeps
+// token positions the same as in a serial parse.
+class ParallelParser {
+    // smaller sources are not worth splitting
+    static final int MIN_SOURCE_SIZE = 1 << 18;
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    private static class Chunk {
+        final int start;
+        final int end;
+        final int line;
+        final int column;
+
+        Chunk(int start, int end, int line, int column) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    private ParallelParser() {}
+
+    // null if any chunk had an error, the caller parses serially then so errors are reported in order
+    static List<Stmt> parse(ByteBuffer source) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        List<Chunk> chunks = split(source, Math.max(MIN_CHUNK_SIZE, source.limit() / (4 * pool.getParallelism())));
+        List<ForkJoinTask<List<Stmt>>> tasks = new ArrayList<>();
+
+        for (Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> parse(source, chunk)));
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+
+        for (ForkJoinTask<List<Stmt>> task : tasks) {
+            List<Stmt> chunkStatements = task.join();
+
+            if (chunkStatements == null) {
+                return null;
+            }
+            statements.addAll(chunkStatements);
+        }
+
+        return statements;
+    }
+
+    private static List<Stmt> parse(ByteBuffer source, Chunk chunk) {
+        ByteBuffer bytes = source.duplicate();
+        bytes.limit(chunk.end);
+        bytes.position(chunk.start);
+
+        Parser parser = new Parser(new Scanner(bytes, chunk.line, chunk.column, true));
+        List<Stmt> statements = parser.parse();
+
+        return parser.hadError() ? null : statements;
+    }
+
+    // follows comments and strings the same way the scanner does
+    private static List<Chunk> split(ByteBuffer source, int chunkSize) {
+        List<Chunk> chunks = new ArrayList<>();
+        Cursor cursor = new Cursor(source);
+        int start = 0;
+        int startLine = 1;
+        int startColumn = 1;
+        int depth = 0;
+
+        while (!cursor.isAtEnd()) {
+            switch (cursor.next()) {
+                case '"':
+                    while (!cursor.isAtEnd() && cursor.next() != '"') {
+                        // skip the string
+                    }
+                    break;
+                case '/':
+                    if (cursor.peek() == '/') {
+                        while (!cursor.isAtEnd() && cursor.peek() != '\n') {
+                            cursor.next();
+                        }
+                    } else if (cursor.peek() == '*') {
+                        cursor.next();
+                        int c = cursor.isAtEnd() ? 0 : cursor.next();
+
+                        while (!cursor.isAtEnd()) {
+                            if (c == '*' && cursor.peek() == '/') {
+                                cursor.next();
+                                break;
+                            }
+                            c = cursor.next();
+                        }
+                    }
+                    break;
+                case '(':
+                case '{':
+                    depth += 1;
+                    break;
+                case ')':
+                case '}':
+                    depth -= 1;
+                    break;
+                case ';':
+                    if (depth == 0 && cursor.position - start >= chunkSize && !elseFollows(source, cursor.position)) {
+                        chunks.add(new Chunk(start, cursor.position, startLine, startColumn));
+                        start = cursor.position;
+                        startLine = cursor.line;
+                        startColumn = cursor.column;
+                    }
+                    break;
+            }
+        }
+
+        chunks.add(new Chunk(start, source.limit(), startLine, startColumn));
+        return chunks;
+    }
+
+    private static class Cursor {
+        final ByteBuffer source;
+        int position = 0;
+        int line = 1;
+        int column = 1;
+
+        Cursor(ByteBuffer source) {
+            this.source = source;
+        }
+
+        boolean isAtEnd() {
+            return position >= source.limit();
+        }
+
+        int peek() {
+            return isAtEnd() ? 0 : source.get(position) & 0xff;
+        }
+
+        // counts columns in UTF-16 units like Scanner.advance
+        int next() {
+            int b = source.get(position++) & 0xff;
+
+            if (b == '\n') {
+                column = 1;
+                line += 1;
+            } else if (b >= 0xf0) {
+                column += 2;
+            } else if ((b & 0xc0) != 0x80) {
+                column += 1;
+            }
+
+            return b;
+        }
+    }
+
+    private static boolean elseFollows(ByteBuffer source, int i) {
+        int length = source.limit();
+
+        while (i < length && (source.get(i) == ' ' || source.get(i) == '\t' || source.get(i) == '\n')) {
+            ++i;
+        }
+
+        for (char c : "else".toCharArray()) {
+            if (i >= length || source.get(i) != c) {
+                return false;
+            }
+            ++i;
+        }
+
+        return i >= length || !isIdentifierPart(source.get(i));
+    }
+
+    private static boolean isIdentifierPart(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+}
@@ -8,11 +8,21 @@ class Parser {
     private static class ParseError extends RuntimeException {}
     private boolean parsingVars = false;
 
-    private final List<Token> tokens;
+    // Tokens are addressed by index and pulled from the scanner as the parser advances. Token objects are
+    // only made for tokens the AST keeps or an error reports.
+    private final Scanner scanner;
+    private final TokenBuffer tokens;
     private int current = 0;
+    private boolean hadError = false;
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner) {
+        this.scanner = scanner;
+        this.tokens = new TokenBuffer(scanner);
+    }
+
+    // true if the scanner or the parser rejected anything
+    boolean hadError() {
+        return hadError || scanner.hadError();
     }
 
     List<Stmt> parse() {
@@ -40,13 +50,13 @@ class Parser {
     }
 
     private Stmt funcDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expected function name in function declaration.");
+        Token name = tokens.token(consume(TokenType.IDENTIFIER, "Expected function name in function declaration."));
         Expr.Function fn = (Expr.Function) function(true);
         return new Stmt.Var(name, null, fn);
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expected variable name.");
+        Token name = tokens.token(consume(TokenType.IDENTIFIER, "Expected variable name."));
         Expr initializer = new Expr.Literal(null);
 
         parsingVars = false;
@@ -197,10 +207,7 @@ class Parser {
         if (match(TokenType.FN)) {
             return function();
         }
-        if (disableComma) {
-            return assignment();
-        }
-        return comma();
+        return expression(disableComma ? ASSIGNMENT : COMMA);
     }
 
     private Expr function() {
@@ -213,8 +220,12 @@ class Parser {
 
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
-                parameters.add(consume(TokenType.IDENTIFIER,
-                        "Expected parameter name in function declaration."));
+                if (parameters.size() >= 255) {
+                    error(peek(), "Cannot have more than 255 parameters.");
+                }
+
+                parameters.add(tokens.token(consume(TokenType.IDENTIFIER,
+                        "Expected parameter name in function declaration.")));
             } while (match(TokenType.COMMA));
         }
 
@@ -236,137 +247,143 @@ class Parser {
             body.add(new Stmt.Return(expr));
         }
 
-        return new Expr.Function(parameters, Arrays.asList(new Variable[parameters.size()]), body);
-    }
-
-    private Expr comma() {
-        Expr expr = assignment();
-
-        while (match(TokenType.COMMA)) {
-            Token operator = previous();
-            Expr right = comma();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr assignment() {
-        Expr expr = ternary();
+        return new Expr.Function(parameters, body);
+    }
+
+    // Binding powers of the infix operators, indexed by TokenType ordinal, 0 for tokens that are not one
+    private static final int COMMA = 1;
+    private static final int ASSIGNMENT = 2;
+    private static final int TERNARY = 3;
+    private static final int OR = 4;
+    private static final int AND = 5;
+    private static final int EQUALITY = 6;
+    private static final int COMPARISON = 7;
+    private static final int ADDITION = 8;
+    private static final int MULTIPLICATION = 9;
+    private static final int UNARY = 10;
+    private static final int CALL = 11;
+
+    private static final int[] INFIX = new int[TokenType.values().length];
+
+    static {
+        INFIX[TokenType.COMMA.ordinal()] = COMMA;
+        INFIX[TokenType.EQUAL.ordinal()] = ASSIGNMENT;
+        INFIX[TokenType.QUESTION.ordinal()] = TERNARY;
+        INFIX[TokenType.OR.ordinal()] = OR;
+        INFIX[TokenType.AND.ordinal()] = AND;
+        INFIX[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        INFIX[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        INFIX[TokenType.LESS.ordinal()] = COMPARISON;
+        INFIX[TokenType.GREATER.ordinal()] = COMPARISON;
+        INFIX[TokenType.LESS_EQUAL.ordinal()] = COMPARISON;
+        INFIX[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        INFIX[TokenType.PLUS.ordinal()] = ADDITION;
+        INFIX[TokenType.MINUS.ordinal()] = ADDITION;
+        INFIX[TokenType.STAR.ordinal()] = MULTIPLICATION;
+        INFIX[TokenType.SLASH.ordinal()] = MULTIPLICATION;
+        INFIX[TokenType.LEFT_PAREN.ordinal()] = CALL;
+    }
+
+    // Parses operators binding at least as tightly as minPower in one loop. Left associative chains and runs
+    // of a right associative operator are collected iteratively, only nested operands recurse.
+    private Expr expression(int minPower) {
+        Expr expr = prefix();
 
-        if (match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
+        while (!isAtEnd()) {
+            TokenType type = tokens.type(current);
+            int power = INFIX[type.ordinal()];
 
-            if (expr instanceof Expr.Var) {
-                Token name = ((Expr.Var) expr).name;
-                return new Expr.Assign(name, null, value);
+            if (power == 0 || power < minPower) {
+                break;
             }
 
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
-    private Expr ternary() {
-        Expr expr = or();
-
-        if (match(TokenType.QUESTION)) {
-            Expr trueBranch = ternary();
-            consume(TokenType.COLON, "Missing ':' in ternary expression");
-            Expr falseBranch = ternary();
-            expr = new Expr.Ternary(expr, trueBranch, falseBranch);
-        }
-
-        return expr;
-    }
-
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(TokenType.OR)) {
-            Expr right = or();
-            expr = new Expr.Or(expr, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(TokenType.AND)) {
-            Expr right = and();
-            expr = new Expr.And(expr, right);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = addition();
+            advance();
 
-        while (match(TokenType.LESS, TokenType.GREATER, TokenType.LESS_EQUAL, TokenType.GREATER_EQUAL)) {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Expr.Binary(expr, operator, right);
+            switch (type) {
+                case LEFT_PAREN:
+                    expr = finishCall(expr);
+                    break;
+                case COMMA:
+                case EQUAL:
+                case OR:
+                case AND:
+                    expr = rightAssociative(type, power, expr);
+                    break;
+                case QUESTION: {
+                    // the false branch takes any further ternaries, so they nest to the right
+                    Expr trueBranch = expression(TERNARY);
+                    consume(TokenType.COLON, "Missing ':' in ternary expression");
+                    Expr falseBranch = expression(TERNARY);
+                    expr = new Expr.Ternary(expr, trueBranch, falseBranch);
+                    break;
+                }
+                default: {
+                    Token operator = previous();
+                    expr = new Expr.Binary(expr, operator, expression(power + 1));
+                    break;
+                }
+            }
         }
 
         return expr;
     }
 
-    private Expr addition() {
-        Expr expr = multiplication();
-
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Expr.Binary(expr, operator, right);
+    // A run of the same right associative operator, the first one already consumed. The operands are
+    // combined from the right, which also reports invalid assignment targets innermost first.
+    private Expr rightAssociative(TokenType type, int power, Expr first) {
+        List<Expr> operands = new ArrayList<>();
+        List<Token> operators = new ArrayList<>();
+        operands.add(first);
+
+        do {
+            operators.add(type == TokenType.COMMA || type == TokenType.EQUAL ? previous() : null);
+            operands.add(expression(power + 1));
+        } while (match(type));
+
+        Expr expr = operands.get(operands.size() - 1);
+
+        for (int i = operators.size() - 1; i >= 0; --i) {
+            Expr left = operands.get(i);
+
+            switch (type) {
+                case COMMA:
+                    expr = new Expr.Binary(left, operators.get(i), expr);
+                    break;
+                case OR:
+                    expr = new Expr.Or(left, expr);
+                    break;
+                case AND:
+                    expr = new Expr.And(left, expr);
+                    break;
+                default:
+                    if (left instanceof Expr.Var) {
+                        expr = new Expr.Assign(((Expr.Var) left).name, null, expr);
+                    } else {
+                        error(operators.get(i), "Invalid assignment target.");
+                        expr = left;
+                    }
+                    break;
+            }
         }
 
         return expr;
     }
 
-    private Expr multiplication() {
-        Expr expr = unary();
-
-        while (match(TokenType.STAR, TokenType.SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    // prefix operators apply to a primary and its calls, a run of them is collected without recursing
+    private Expr prefix() {
+        if (!check(TokenType.BANG) && !check(TokenType.MINUS)) {
+            return primary();
         }
 
-        return expr;
-    }
-
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+        List<Token> operators = new ArrayList<>();
+        while (check(TokenType.BANG) || check(TokenType.MINUS)) {
+            operators.add(tokens.token(advance()));
         }
 
-        return call();
-    }
-
-    private Expr call() {
-        Expr expr = primary();
+        Expr expr = expression(UNARY);
 
-        while (match(TokenType.LEFT_PAREN)) {
-            expr = finishCall(expr);
+        for (int i = operators.size() - 1; i >= 0; --i) {
+            expr = new Expr.Unary(operators.get(i), expr);
         }
 
         return expr;
@@ -376,42 +393,62 @@ class Parser {
         List<Expr> arguments = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
+                // the VM keeps argument counts in a byte
+                if (arguments.size() >= 255) {
+                    error(peek(), "Cannot have more than 255 arguments.");
+                }
+
                 arguments.add(expression(true));
             } while (match(TokenType.COMMA));
         }
 
-        Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = tokens.token(consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments."));
 
         return new Expr.Call(callee, paren, arguments);
     }
 
     private Expr primary() {
-        if (match(TokenType.FALSE)) return new Expr.Literal(false);
-        if (match(TokenType.TRUE)) return new Expr.Literal(true);
-        if (match(TokenType.NIL)) return new Expr.Literal(null);
-
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expected ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        if (match(TokenType.IDENTIFIER)) {
-            return new Expr.Var(previous(), null);
-        }
-
-        if (match(TokenType.COMMA, TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL, TokenType.LESS, TokenType.GREATER,
-                TokenType.LESS_EQUAL, TokenType.GREATER_EQUAL, TokenType.PLUS, TokenType.STAR, TokenType.SLASH)) {
-            ParseError err = error(previous(), "Binary operator at start of expression.");
-            expression();
-            throw err;
+        switch (tokens.type(current)) {
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(tokens.literal(current - 1));
+            case LEFT_PAREN: {
+                advance();
+                Expr expr = expression();
+                consume(TokenType.RIGHT_PAREN, "Expected ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
+            case IDENTIFIER:
+                advance();
+                return new Expr.Var(previous(), null);
+            case COMMA:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+            case LESS:
+            case GREATER:
+            case LESS_EQUAL:
+            case GREATER_EQUAL:
+            case PLUS:
+            case STAR:
+            case SLASH: {
+                advance();
+                ParseError err = error(previous(), "Binary operator at start of expression.");
+                expression();
+                throw err;
+            }
+            default:
+                throw error(peek(), "Expected expression.");
         }
-
-        throw error(peek(), "Expected expression.");
     }
 
     private void synchronize() {
@@ -422,7 +459,7 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) {
                 return;
             }
 
@@ -435,7 +472,8 @@ class Parser {
         }
     }
 
-    private Token consume(TokenType type, String message) {
+    // returns the index of the consumed token
+    private int consume(TokenType type, String message) {
         if (check(type)) {
             return advance();
         }
@@ -444,10 +482,23 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        hadError = true;
+
+        // after a scan error the script is rejected anyway, and the follow-on parse errors are just noise
+        if (!scanner.hadError() && !scanner.isQuiet()) {
+            Lox.error(token, message);
+        }
         return new ParseError();
     }
 
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
     private boolean match(TokenType ...types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -462,23 +513,23 @@ class Parser {
         if (isAtEnd()) {
             return false;
         }
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private int advance() {
         current += 1;
-        return previous();
+        return current - 1;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 }
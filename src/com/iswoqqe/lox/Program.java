@@ -0,0 +1,16 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+// A resolved script, ready to run. New globals are the cells of its top level variables.
+class Program {
+    final List<Stmt> statements;
+    final Globals newGlobals;
+    final int frameSize;
+
+    Program(List<Stmt> statements, Globals newGlobals, int frameSize) {
+        this.statements = statements;
+        this.newGlobals = newGlobals;
+        this.frameSize = frameSize;
+    }
+}
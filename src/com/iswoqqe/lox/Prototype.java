@@ -0,0 +1,27 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+// Compiled form of an Expr.Function, shared by every closure created from it.
+class Prototype {
+    final List<Token> parameters;
+    final Chunk chunk = new Chunk();
+    // number of local slots, slot 0 holds the capture array
+    final int frameSize;
+    // see Expr.Function
+    final int[] captures;
+    final int[] boxedParameters;
+    final boolean memoizable;
+
+    Prototype(List<Token> parameters, int frameSize, int[] captures, int[] boxedParameters, boolean memoizable) {
+        this.parameters = parameters;
+        this.frameSize = frameSize;
+        this.captures = captures;
+        this.boxedParameters = boxedParameters;
+        this.memoizable = memoizable;
+    }
+
+    int arity() {
+        return parameters.size();
+    }
+}
@@ -1,42 +1,139 @@
 package com.iswoqqe.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-    private final List<Stmt> statements;
-    private final List<Map<String, Variable>> environments = new ArrayList<>();
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final int level;
+        // slot 0 holds the capture array
+        int frameSize = 1;
+        // sources of the capture array, see Expr.Function.captures
+        final List<Integer> captures = new ArrayList<>();
+        // slots captured by nested functions
+        final Set<Integer> boxed = new HashSet<>();
+        // uses of the function's own slots, marked once it is known which are boxed
+        final List<Expr.Var> vars = new ArrayList<>();
+        final List<Expr.Assign> assigns = new ArrayList<>();
+        final List<Stmt.Var> declarations = new ArrayList<>();
+        // cleared by anything that can make a call's result depend on more than its arguments, or have an
+        // effect: globals, captured variables, calls, print and closures
+        boolean memoizable = true;
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+            this.level = enclosing == null ? 0 : enclosing.level + 1;
+        }
+
+        // index of a variable of an enclosing function in this function's captures, functions in between
+        // capture it too
+        int capture(FunctionScope owner, int slot) {
+            int source;
+
+            if (enclosing == owner) {
+                owner.boxed.add(slot);
+                source = slot;
+            } else {
+                source = ~enclosing.capture(owner, slot);
+            }
+
+            int index = captures.indexOf(source);
+
+            if (index < 0) {
+                index = captures.size();
+                captures.add(source);
+            }
+            return index;
+        }
+
+        void markBoxed() {
+            for (Expr.Var var : vars) {
+                var.boxed = boxed.contains(var.slot);
+            }
+            for (Expr.Assign assign : assigns) {
+                assign.boxed = boxed.contains(assign.slot);
+            }
+            for (Stmt.Var declaration : declarations) {
+                declaration.boxed = boxed.contains(declaration.slot);
+            }
+        }
+    }
+
+    // slots of the names declared in one block, scopes are small so a linear scan over symbol IDs is enough
+    private static class Scope {
+        final FunctionScope function;
+        private int[] symbols = new int[4];
+        private int[] slots = new int[4];
+        private int size = 0;
 
-    Resolver(List<Stmt> statements, Map<String, Variable> builtins) {
-        Map<String, Variable> globalEnv = new HashMap<>();
+        Scope(FunctionScope function) {
+            this.function = function;
+        }
+
+        // -1 if the symbol is not declared in this scope
+        int slot(int symbol) {
+            for (int i = 0; i < size; ++i) {
+                if (symbols[i] == symbol) {
+                    return slots[i];
+                }
+            }
+            return -1;
+        }
+
+        void declare(int symbol, int slot) {
+            if (size == symbols.length) {
+                symbols = Arrays.copyOf(symbols, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            symbols[size] = symbol;
+            slots[size] = slot;
+            size += 1;
+        }
+    }
+
+    private final List<Stmt> statements;
+    private final Globals builtins;
+    private final Globals newGlobals = new Globals();
+    private final List<Scope> scopes = new ArrayList<>();
+    private final FunctionScope script = new FunctionScope(null);
+    private FunctionScope function = script;
 
+    Resolver(List<Stmt> statements, Globals builtins) {
         for (Stmt stmt : statements) {
             if (stmt instanceof Stmt.Var) {
                 Stmt.Var var = (Stmt.Var) stmt;
 
-                if (globalEnv.containsKey(var.name.lexeme)) {
+                if (newGlobals.get(var.name.symbol) != null) {
                     error(var.name, "Variable '" + var.name.lexeme + "' already defined in this scope.");
                 } else {
-                    globalEnv.put(var.name.lexeme, new Variable());
+                    newGlobals.put(var.name.symbol, new Variable());
                 }
             }
         }
 
         this.statements = statements;
-        this.environments.add(builtins);
-        this.environments.add(globalEnv);
+        this.builtins = builtins;
+    }
+
+    Globals getNewGlobalsRef() {
+        return newGlobals;
     }
 
-    Map<String, Variable> getNewGlobalsRef() {
-        return environments.get(1);
+    // size of the frame holding locals of top level blocks
+    int getFrameSize() {
+        return script.frameSize;
     }
 
     void resolve() {
         for (Stmt stmt : statements) {
             resolveStmt(stmt);
         }
+
+        script.markBoxed();
     }
 
     @Override
@@ -48,6 +145,7 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitCallExpr(Expr.Call expr) {
+        function.memoizable = false;
         resolveExpr(expr.callee);
         for (Expr e : expr.arguments) {
             resolveExpr(e);
@@ -82,13 +180,43 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitVarExpr(Expr.Var expr) {
-        expr.resolved = getVar(expr.name);
+        Scope scope = findScope(expr.name);
+
+        if (scope == null) {
+            expr.resolved = getVar(expr.name);
+            function.memoizable = false;
+        } else {
+            expr.depth = function.level - scope.function.level;
+            expr.slot = scope.slot(expr.name.symbol);
+
+            if (expr.depth > 0) {
+                expr.capture = function.capture(scope.function, expr.slot);
+                function.memoizable = false;
+            } else {
+                function.vars.add(expr);
+            }
+        }
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
-        expr.resolved = getVar(expr.name);
+        Scope scope = findScope(expr.name);
+
+        if (scope == null) {
+            expr.resolved = getVar(expr.name);
+            function.memoizable = false;
+        } else {
+            expr.depth = function.level - scope.function.level;
+            expr.slot = scope.slot(expr.name.symbol);
+
+            if (expr.depth > 0) {
+                expr.capture = function.capture(scope.function, expr.slot);
+                function.memoizable = false;
+            } else {
+                function.assigns.add(expr);
+            }
+        }
         resolveExpr(expr.value);
         return null;
     }
@@ -109,21 +237,42 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitFunctionExpr(Expr.Function expr) {
-        Map<String, Variable> newScope = new HashMap<>();
+        FunctionScope enclosing = function;
+        function = new FunctionScope(enclosing);
 
-        for (int i = 0; i < expr.parameters.size(); ++i) {
-            Variable var = new Variable();
-            expr.resolved.set(i, var);
-            newScope.put(expr.parameters.get(i).lexeme, var);
+        Scope scope = new Scope(function);
+        for (Token param : expr.parameters) {
+            scope.declare(param.symbol, function.frameSize++);
         }
 
-        environments.add(newScope);
+        scopes.add(scope);
 
         for (Stmt stmt : expr.body) {
             resolveStmt(stmt);
         }
 
-        environments.remove(environments.size() - 1);
+        scopes.remove(scopes.size() - 1);
+        function.markBoxed();
+        expr.frameSize = function.frameSize;
+        expr.captures = toArray(function.captures);
+
+        List<Integer> boxedParameters = new ArrayList<>();
+        for (int slot = 1; slot <= expr.parameters.size(); ++slot) {
+            if (function.boxed.contains(slot)) {
+                boxedParameters.add(slot);
+            }
+        }
+        expr.boxedParameters = toArray(boxedParameters);
+        expr.memoizable = function.memoizable;
+
+        function = enclosing;
+        function.memoizable = false;
+        return null;
+    }
+
+    @Override
+    public Void visitFusedExpr(Expr.Fused expr) {
+        resolveExpr(expr.original);
         return null;
     }
 
@@ -135,6 +284,7 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
+        function.memoizable = false;
         resolveExpr(stmt.expression);
         return null;
     }
@@ -143,30 +293,35 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitVarStmt(Stmt.Var stmt) {
         resolveExpr(stmt.initializer);
 
-        if (!inGlobalScope()) {
-            Map<String, Variable> env = environments.get(environments.size() - 1);
+        if (inGlobalScope()) {
+            stmt.resolved = getVar(stmt.name);
+            return null;
+        }
 
-            if (env.containsKey(stmt.name.lexeme)) {
-                error(stmt.name, "Variable '" + stmt.name.lexeme + "' already defined in this scope.");
-                return null;
-            }
+        Scope scope = scopes.get(scopes.size() - 1);
 
-            env.put(stmt.name.lexeme, new Variable());
+        if (scope.slot(stmt.name.symbol) >= 0) {
+            error(stmt.name, "Variable '" + stmt.name.lexeme + "' already defined in this scope.");
+            return null;
         }
-        stmt.resolved = getVar(stmt.name);
+
+        // slots are never reused within a frame, closures may still see a variable after its block ends
+        stmt.slot = function.frameSize++;
+        scope.declare(stmt.name.symbol, stmt.slot);
+        function.declarations.add(stmt);
 
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        environments.add(new HashMap<>());
+        scopes.add(new Scope(function));
 
         for (Stmt s : stmt.statements) {
             resolveStmt(s);
         }
 
-        environments.remove(environments.size() - 1);
+        scopes.remove(scopes.size() - 1);
         return null;
     }
 
@@ -185,12 +340,37 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return visitWhileStmt(stmt.loop);
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         resolveExpr(stmt.expression);
+
+        if (function != script) {
+            markTailCalls(stmt.expression);
+        }
         return null;
     }
 
+    // marks calls whose value becomes the return value unchanged
+    private void markTailCalls(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            ((Expr.Call) expr).tail = true;
+        } else if (expr instanceof Expr.Grouping) {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            markTailCalls(((Expr.Ternary) expr).trueBranch);
+            markTailCalls(((Expr.Ternary) expr).falseBranch);
+        } else if (expr instanceof Expr.Or) {
+            markTailCalls(((Expr.Or) expr).right);
+        } else if (expr instanceof Expr.And) {
+            markTailCalls(((Expr.And) expr).right);
+        }
+    }
+
     private void resolveExpr(Expr expr) {
         if (expr == null) {
             return;
@@ -206,14 +386,26 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     }
 
     private boolean inGlobalScope() {
-        return environments.size() <= 2;
+        return scopes.isEmpty();
+    }
+
+    private Scope findScope(Token identifier) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Scope scope = scopes.get(i);
+
+            if (scope.slot(identifier.symbol) >= 0) {
+                return scope;
+            }
+        }
+
+        return null;
     }
 
     private Variable getVar(Token identifier) {
-        Variable resolved = null;
+        Variable resolved = newGlobals.get(identifier.symbol);
 
-        for (Map<String, Variable> env : environments) {
-            resolved = env.getOrDefault(identifier.lexeme, resolved);
+        if (resolved == null) {
+            resolved = builtins.get(identifier.symbol);
         }
 
         if (resolved == null) {
@@ -223,6 +415,14 @@ class Resolver implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         return resolved;
     }
 
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     private void error(Token token, String message) {
         Lox.error(token, message);
     }
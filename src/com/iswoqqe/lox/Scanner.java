@@ -1,58 +1,79 @@
 package com.iswoqqe.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Scans UTF-8 bytes into a TokenBuffer one token at a time. Tokens are offsets into the source and lexemes
+// are only decoded when asked for, so a memory-mapped file is never copied as a whole.
 class Scanner {
-    private final String source;
-    private final List<Token>  tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final int length;
+    private byte[] scratch = new byte[64];
+    private TokenBuffer target = null;
+    private boolean added = false;
+    private boolean hadError = false;
+    private final boolean quiet;
     private int start = 0;
     private int current = 0;
-    private int line = 1;
-    private int column = 1;
+    private int line;
+    private int column;
     private int savedColumn;
-    private boolean scanned = false;
-    private static final Map<String, TokenType> keywords = new HashMap<>();
-
-    static {
-        keywords.put("and",    TokenType.AND);
-        keywords.put("class",  TokenType.CLASS);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("for",    TokenType.FOR);
-        keywords.put("fn",    TokenType.FN);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("nil",    TokenType.NIL);
-        keywords.put("or",     TokenType.OR);
-        //keywords.put("print",  TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super",  TokenType.SUPER);
-        keywords.put("this",   TokenType.THIS);
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("var",    TokenType.VAR);
-        keywords.put("while",  TokenType.WHILE);
-    }
 
     Scanner(String source) {
-        this.source = source;
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // scans the bytes between the buffer's position and limit
+    Scanner(ByteBuffer source) {
+        this(source, 1, 1, false);
     }
 
-    List<Token> scanTokens() {
-        if (scanned) {
-            return tokens;
+    // Scans a piece of a larger source that starts at the given line and column, see ParallelParser. Quiet
+    // scanners only record errors, and so do parsers reading from them.
+    Scanner(ByteBuffer source, int line, int column, boolean quiet) {
+        this.source = source.slice();
+        this.length = this.source.limit();
+        this.line = line;
+        this.column = column;
+        this.quiet = quiet;
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
+    }
+
+    // appends the next token, or EOF once the source is exhausted
+    void scan(TokenBuffer tokens) {
+        target = tokens;
+        added = false;
 
         while (!isAtEnd()) {
             start = current;
             savedColumn = column;
             scanToken();
+
+            if (added) {
+                return;
+            }
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line, column));
-        scanned = true;
-        return tokens;
+        tokens.add(TokenType.EOF, length, 0, line, column, -1);
+    }
+
+    // true if any token was rejected, streaming callers cannot tell scan errors from parse errors otherwise
+    boolean hadError() {
+        return hadError;
+    }
+
+    boolean isQuiet() {
+        return quiet;
     }
 
     private void scanToken() {
@@ -99,7 +120,7 @@ class Scanner {
                 } else if (match('f')) {
                     addToken(TokenType.FALSE);
                 } else {
-                    Lox.error(line, column, "'#' must be followed by 't' or 'f'");
+                    error("'#' must be followed by 't' or 'f'");
                 }
             case ' ':
             case '\t':
@@ -111,7 +132,12 @@ class Scanner {
                 } else if (isAlpha(c) || c == '_') {
                     identifier();
                 } else {
-                    Lox.error(line, column, "Unexpected character '" + c + "' while scanning.");
+                    error("Unexpected character '" + characterAt(start) + "' while scanning.");
+
+                    // the rest of a multi-byte character
+                    while ((peek() & 0xc0) == 0x80) {
+                        advance();
+                    }
                 }
                 break;
         }
@@ -123,14 +149,13 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, column, "Unterminated string");
+            error("Unterminated string");
             return;
         }
 
         advance();
 
-        String str = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, str);
+        addToken(TokenType.STRING);
     }
 
     private void number() {
@@ -158,8 +183,7 @@ class Scanner {
             }
         }
 
-        double num = Double.parseDouble(source.substring(start, current));
-        addToken(TokenType.NUMBER, num);
+        addToken(TokenType.NUMBER);
     }
 
     private void identifier() {
@@ -167,9 +191,62 @@ class Scanner {
             advance();
         }
 
-        String str = source.substring(start, current);
-        TokenType type = keywords.getOrDefault(str, TokenType.IDENTIFIER);
-        addToken(type);
+        TokenType type = keyword();
+
+        if (type == TokenType.IDENTIFIER) {
+            addToken(type, Symbols.intern(source, start, current));
+        } else {
+            addToken(type);
+        }
+    }
+
+    // print is a native function, not a keyword
+    private TokenType keyword() {
+        switch (source.get(start)) {
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'n': return keyword(2, "", TokenType.FN);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", TokenType.IF);
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.get(start + 1)) {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+
+        return TokenType.IDENTIFIER;
+    }
+
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) {
+            return TokenType.IDENTIFIER;
+        }
+
+        for (int i = 0; i < rest.length(); ++i) {
+            if (source.get(start + offset + i) != rest.charAt(i)) {
+                return TokenType.IDENTIFIER;
+            }
+        }
+
+        return type;
     }
 
     private void blockComment() {
@@ -187,21 +264,26 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
+    // Non-ASCII bytes come back as chars above 0x7f, which never match anything the scanner looks for.
+    // Columns count UTF-16 units like String.length, so continuation bytes are skipped and four byte
+    // sequences count twice.
     private char advance() {
+        int b = source.get(current) & 0xff;
         current += 1;
-        column += 1;
-
-        char c = source.charAt(current - 1);
 
-        if (c == '\n') {
+        if (b == '\n') {
             column = 1;
             line += 1;
+        } else if (b >= 0xf0) {
+            column += 2;
+        } else if ((b & 0xc0) != 0x80) {
+            column += 1;
         }
 
-        return c;
+        return (char) b;
     }
 
     private char peek() {
@@ -209,16 +291,47 @@ class Scanner {
             return '\0';
         }
 
-        return source.charAt(current);
+        return (char) (source.get(current) & 0xff);
     }
 
     private char peekNext() {
-        if (current + 1 < source.length()) {
-            return source.charAt(current + 1);
+        if (current + 1 < length) {
+            return (char) (source.get(current + 1) & 0xff);
         }
         return '\0';
     }
 
+    // decodes the source between two byte offsets
+    String text(int from, int to) {
+        int size = to - from;
+
+        if (source.hasArray()) {
+            return new String(source.array(), source.arrayOffset() + from, size, StandardCharsets.UTF_8);
+        }
+
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+
+        for (int i = 0; i < size; ++i) {
+            scratch[i] = source.get(from + i);
+        }
+
+        return new String(scratch, 0, size, StandardCharsets.UTF_8);
+    }
+
+    // value of the number literal between two byte offsets
+    double number(int from, int to) {
+        return NumberLiteral.parse(source, from, to);
+    }
+
+    // the whole character starting at the given byte, for error messages
+    private String characterAt(int offset) {
+        int b = source.get(offset) & 0xff;
+        int size = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        return text(offset, Math.min(offset + size, length));
+    }
+
     private boolean match(char expected) {
         if (isAtEnd() || peek() != expected) {
             return false;
@@ -237,11 +350,18 @@ class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        addToken(type, -1);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String lexeme = source.substring(start, current);
-        tokens.add(new Token(type, lexeme, literal, line, savedColumn));
+    private void addToken(TokenType type, int symbol) {
+        target.add(type, start, current - start, line, savedColumn, symbol);
+        added = true;
+    }
+
+    private void error(String message) {
+        hadError = true;
+        if (!quiet) {
+            Lox.error(line, column, message);
+        }
     }
 }
@@ -1,5 +1,6 @@
 package com.iswoqqe.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 abstract class Stmt {
@@ -10,15 +11,34 @@ abstract class Stmt {
         T visitBlockStmt(Block stmt);
         T visitIfStmt(If stmt);
         T visitWhileStmt(While stmt);
+        T visitCountedLoopStmt(CountedLoop stmt);
         T visitReturnStmt(Return stmt);
     }
 
     abstract <T> T accept(Visitor<T> visitor);
 
-    static class Expression extends Stmt {
+    // statement kinds, as for Expr
+    static final int EXPRESSION = 0;
+    static final int PRINT = 1;
+    static final int VAR = 2;
+    static final int BLOCK = 3;
+    static final int IF = 4;
+    static final int WHILE = 5;
+    static final int COUNTED_LOOP = 6;
+    static final int RETURN = 7;
+
+    final int kind;
+
+    // private, so the classes below are the only statements
+    private Stmt(int kind) {
+        this.kind = kind;
+    }
+
+    static final class Expression extends Stmt {
         final Expr expression;
 
         Expression(Expr expression) {
+            super(EXPRESSION);
             this.expression = expression;
         }
 
@@ -28,10 +48,11 @@ abstract class Stmt {
         }
     }
 
-    static class Print extends Stmt {
+    static final class Print extends Stmt {
         final Expr expression;
 
         Print(Expr expression) {
+            super(PRINT);
             this.expression = expression;
         }
 
@@ -41,12 +62,17 @@ abstract class Stmt {
         }
     }
 
-    static class Var extends Stmt {
+    static final class Var extends Stmt {
         final Token name;
+        // global cell, null when the variable lives in a frame slot
         Variable resolved;
+        int slot;
+        // true if closures capture the variable, a new box is made each time the declaration runs
+        boolean boxed;
         final Expr initializer;
 
         Var(Token name, Variable resolved, Expr initializer) {
+            super(VAR);
             this.name = name;
             this.resolved = resolved;
             this.initializer = initializer;
@@ -58,10 +84,11 @@ abstract class Stmt {
         }
     }
 
-    static class Block extends Stmt {
+    static final class Block extends Stmt {
         final List<Stmt> statements;
 
         Block(List<Stmt> statements) {
+            super(BLOCK);
             this.statements = statements;
         }
 
@@ -71,12 +98,13 @@ abstract class Stmt {
         }
     }
 
-    static class If extends Stmt {
+    static final class If extends Stmt {
         final Expr condition;
         final Stmt thenBranch;
         final Stmt elseBranch;
 
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            super(IF);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -88,11 +116,12 @@ abstract class Stmt {
         }
     }
 
-    static class While extends Stmt {
+    static final class While extends Stmt {
         final Expr condition;
         final Stmt statement;
 
         While(Expr condition, Stmt statement) {
+            super(WHILE);
             this.condition = condition;
             this.statement = statement;
         }
@@ -103,10 +132,43 @@ abstract class Stmt {
         }
     }
 
-    static class Return extends Stmt {
+    // A while loop made by the LoopOptimizer whose condition compares a number variable to a limit that does
+    // not change, and whose last statement adds a constant step to the variable. Engines that do not count
+    // natively run the equivalent while loop.
+    static final class CountedLoop extends Stmt {
+        final Expr.Binary condition;
+        final Stmt body;
+        final Expr.Assign increment;
+        final Expr.Var counter;
+        final Expr limit;
+        final double step;
+        final While loop;
+
+        CountedLoop(Expr.Binary condition, Stmt body, Expr.Assign increment) {
+            super(COUNTED_LOOP);
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+            this.counter = (Expr.Var) condition.left;
+            this.limit = condition.right;
+
+            Expr.Binary next = (Expr.Binary) increment.value;
+            double step = (double) ((Expr.Literal) next.right).value;
+            this.step = next.operator.type == TokenType.MINUS ? -step : step;
+            this.loop = new While(condition, new Block(Arrays.asList(body, new Expression(increment))));
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitCountedLoopStmt(this);
+        }
+    }
+
+    static final class Return extends Stmt {
         final Expr expression;
 
         Return(Expr expression) {
+            super(RETURN);
             this.expression = expression;
         }
 
@@ -0,0 +1,139 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+// Last pass before the engines. Small trees that show up everywhere in scripts are replaced by an Expr.Fused,
+// which the Interpreter runs in one step instead of an accept per node. Each node keeps its original tree, the
+// other engines run that, and so does the Interpreter when the fused step does not apply to the values it
+// finds, so errors are still raised by the original node. The shapes are tried in order on every binary,
+// assignment and call after its children are rewritten. A new fusion is a Shape and a case in
+// Interpreter.visitFusedExpr.
+class Superinstructions extends AstRewriter {
+    enum Shape {
+        // local < number, and <=, >, >=
+        COMPARE_LOCAL {
+            @Override
+            Expr.Fused fuse(Expr expr) {
+                if (!(expr instanceof Expr.Binary)) {
+                    return null;
+                }
+
+                Expr.Binary binary = (Expr.Binary) expr;
+
+                if (!isComparison(binary.operator.type) || !isLocal(binary.left) || !isNumber(binary.right)) {
+                    return null;
+                }
+                return new Expr.Fused(this, expr, ((Expr.Var) binary.left).slot, null, binary.operator,
+                        number(binary.right));
+            }
+        },
+
+        // local = local + number, and -
+        INCREMENT_LOCAL {
+            @Override
+            Expr.Fused fuse(Expr expr) {
+                if (!(expr instanceof Expr.Assign) || !(((Expr.Assign) expr).value instanceof Expr.Binary)) {
+                    return null;
+                }
+
+                Expr.Assign assign = (Expr.Assign) expr;
+                Expr.Binary binary = (Expr.Binary) assign.value;
+                TokenType operator = binary.operator.type;
+
+                if (assign.resolved != null || assign.depth > 0 || assign.boxed || !isLocal(binary.left)
+                        || ((Expr.Var) binary.left).slot != assign.slot || !isNumber(binary.right)
+                        || (operator != TokenType.PLUS && operator != TokenType.MINUS)) {
+                    return null;
+                }
+
+                double step = number(binary.right);
+                return new Expr.Fused(this, expr, assign.slot, null, binary.operator,
+                        operator == TokenType.MINUS ? -step : step);
+            }
+        },
+
+        // global(arguments)
+        CALL_GLOBAL {
+            @Override
+            Expr.Fused fuse(Expr expr) {
+                if (!(expr instanceof Expr.Call) || !(((Expr.Call) expr).callee instanceof Expr.Var)) {
+                    return null;
+                }
+
+                Expr.Call call = (Expr.Call) expr;
+                Expr.Var callee = (Expr.Var) call.callee;
+
+                if (callee.resolved == null) {
+                    return null;
+                }
+                return new Expr.Fused(this, expr, 0, callee.resolved, call.paren, 0);
+            }
+        };
+
+        // null if the expression does not have this shape
+        abstract Expr.Fused fuse(Expr expr);
+    }
+
+    private static final Shape[] SHAPES = Shape.values();
+
+    List<Stmt> fuse(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    private static Expr fuse(Expr expr) {
+        for (Shape shape : SHAPES) {
+            Expr.Fused fused = shape.fuse(expr);
+
+            if (fused != null) {
+                return fused;
+            }
+        }
+        return expr;
+    }
+
+    // a plain frame slot of the running function
+    private static boolean isLocal(Expr expr) {
+        if (!(expr instanceof Expr.Var)) {
+            return false;
+        }
+
+        Expr.Var var = (Expr.Var) expr;
+        return var.resolved == null && var.depth == 0 && !var.boxed;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private static double number(Expr expr) {
+        return (double) ((Expr.Literal) expr).value;
+    }
+
+    // == and != are left alone, they compare boxed numbers with equals
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.LESS || type == TokenType.LESS_EQUAL
+                || type == TokenType.GREATER || type == TokenType.GREATER_EQUAL;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        return fuse(super.visitBinaryExpr(expr));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return fuse(super.visitAssignExpr(expr));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        return fuse(super.visitCallExpr(expr));
+    }
+
+    // the counted loop runs its condition and increment itself, only the body is fused
+    @Override
+    public Stmt visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        Stmt body = branch(stmt.body);
+        return body == stmt.body ? stmt : new Stmt.CountedLoop(stmt.condition, body, stmt.increment);
+    }
+}
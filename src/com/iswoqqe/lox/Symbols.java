@@ -0,0 +1,106 @@
+package com.iswoqqe.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Interned identifiers. The scanner gives every distinct name a dense int ID straight from the source bytes,
+// and everything after it compares IDs instead of strings. IDs are never reused, so they stay valid across
+// REPL lines.
+final class Symbols {
+    private static byte[][] bytes = new byte[256][];
+    private static String[] names = new String[256];
+    // open addressing, holds symbol + 1 so that 0 marks an empty entry
+    private static int[] table = new int[512];
+    private static int count = 0;
+
+    private Symbols() {}
+
+    static int intern(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return intern(ByteBuffer.wrap(utf8), 0, utf8.length);
+    }
+
+    // interns the source between two byte offsets, a String is only made the first time a name is seen
+    static synchronized int intern(ByteBuffer source, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; ++i) {
+            hash = 31 * hash + source.get(i);
+        }
+
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+
+            if (entry == 0) {
+                return add(source, from, to, i);
+            }
+            if (matches(bytes[entry - 1], source, from, to)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    static synchronized String name(int symbol) {
+        return names[symbol];
+    }
+
+    private static int add(ByteBuffer source, int from, int to, int index) {
+        byte[] utf8 = new byte[to - from];
+        for (int i = 0; i < utf8.length; ++i) {
+            utf8[i] = source.get(from + i);
+        }
+
+        if (count == bytes.length) {
+            bytes = Arrays.copyOf(bytes, count * 2);
+            names = Arrays.copyOf(names, count * 2);
+        }
+
+        int symbol = count++;
+        bytes[symbol] = utf8;
+        names[symbol] = new String(utf8, StandardCharsets.UTF_8);
+        table[index] = symbol + 1;
+
+        // keep the table at most half full
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return symbol;
+    }
+
+    private static void rehash() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        int mask = table.length - 1;
+
+        for (int entry : old) {
+            if (entry == 0) {
+                continue;
+            }
+
+            int hash = 0;
+            for (byte b : bytes[entry - 1]) {
+                hash = 31 * hash + b;
+            }
+
+            int i = hash & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer source, int from, int to) {
+        if (name.length != to - from) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; ++i) {
+            if (name[i] != source.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
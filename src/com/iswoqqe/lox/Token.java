@@ -6,13 +6,16 @@ class Token {
     final Object literal;
     final int line;
     final int column;
+    // interned name of an identifier, -1 for other tokens
+    final int symbol;
 
-    Token(TokenType type, String lexeme, Object literal, int line, int column) {
+    Token(TokenType type, String lexeme, Object literal, int line, int column, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
         this.column = column;
+        this.symbol = symbol;
     }
 
     public String toString() {
@@ -0,0 +1,89 @@
+package com.iswoqqe.lox;
+
+// Tokens as parallel arrays of source offsets, so scanning allocates nothing per token. Tokens are scanned on
+// demand and only the last WINDOW are kept, the parser never looks further back than the previous token.
+// Lexemes, literals and Token objects are made only for the tokens that end up in the AST or in an error.
+class TokenBuffer {
+    private static final int WINDOW = 4; // power of two
+    private static final int MASK = WINDOW - 1;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Scanner scanner;
+    private final int[] types = new int[WINDOW];
+    private final int[] starts = new int[WINDOW];
+    private final int[] lengths = new int[WINDOW];
+    private final int[] lines = new int[WINDOW];
+    private final int[] columns = new int[WINDOW];
+    private final int[] symbols = new int[WINDOW];
+    private int count = 0;
+
+    TokenBuffer(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int start, int length, int line, int column, int symbol) {
+        int slot = count & MASK;
+        types[slot] = type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        lines[slot] = line;
+        columns[slot] = column;
+        symbols[slot] = symbol;
+        count += 1;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    int line(int index) {
+        return lines[slot(index)];
+    }
+
+    int column(int index) {
+        return columns[slot(index)];
+    }
+
+    int symbol(int index) {
+        return symbols[slot(index)];
+    }
+
+    String lexeme(int index) {
+        int slot = slot(index);
+
+        if (symbols[slot] >= 0) {
+            return Symbols.name(symbols[slot]);
+        }
+        return scanner.text(starts[slot], starts[slot] + lengths[slot]);
+    }
+
+    Object literal(int index) {
+        int slot = slot(index);
+
+        switch (TYPES[types[slot]]) {
+            case STRING:
+                // without the quotes
+                return scanner.text(starts[slot] + 1, starts[slot] + lengths[slot] - 1);
+            case NUMBER:
+                return scanner.number(starts[slot], starts[slot] + lengths[slot]);
+            default:
+                return null;
+        }
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index), column(index), symbol(index));
+    }
+
+    private int slot(int index) {
+        while (index >= count) {
+            scanner.scan(this);
+        }
+
+        if (index < count - WINDOW) {
+            throw new IllegalStateException("Token " + index + " is no longer buffered.");
+        }
+
+        return index & MASK;
+    }
+}
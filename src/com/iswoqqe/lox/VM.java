@@ -0,0 +1,369 @@
+package com.iswoqqe.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+
+    private static class CallFrame {
+        Prototype prototype;
+        Object[] locals;
+        int ip;
+    }
+
+    private final Interpreter interpreter;
+    private Object[] stack = new Object[256];
+    private CallFrame[] frames = new CallFrame[64];
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(List<Stmt> statements, int frameSize) {
+        Prototype script = new BytecodeCompiler().compile(statements, frameSize);
+
+        if (script == null) {
+            return;
+        }
+
+        try {
+            run(script, new Object[script.frameSize]);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, null);
+        }
+    }
+
+    // Call of a closure from outside the VM, made by natives like memo. The closure runs in a VM of its own,
+    // as the stack of the VM that made it belongs to a run loop further down the Java stack.
+    static Object call(Interpreter interpreter, VMFunction closure, List<Object> arguments) {
+        Prototype prototype = closure.prototype;
+        Object[] locals = new Object[prototype.frameSize];
+        locals[0] = closure.captures;
+
+        for (int i = 0; i < arguments.size(); ++i) {
+            locals[i + 1] = arguments.get(i);
+        }
+
+        Function.boxParameters(prototype.boxedParameters, locals);
+        return new VM(interpreter).run(prototype, locals);
+    }
+
+    // value of the outermost return
+    private Object run(Prototype prototype, Object[] locals) {
+        int frameCount = 0;
+        int sp = 0;
+
+        byte[] code = prototype.chunk.code;
+        Object[] constants = prototype.chunk.constants();
+        int ip = 0;
+        Object[] stack = ensureStack(sp, prototype);
+
+        while (true) {
+            int start = ip;
+            byte op = code[ip++];
+
+            switch (op) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readInt(code, ip)];
+                    ip += 4;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case OpCode.POP:
+                    sp -= 1;
+                    break;
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = locals[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    locals[readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OpCode.GET_CAPTURE:
+                    stack[sp++] = ((Variable[]) locals[0])[readShort(code, ip)].value;
+                    ip += 2;
+                    break;
+                case OpCode.SET_CAPTURE:
+                    ((Variable[]) locals[0])[readShort(code, ip)].value = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OpCode.GET_BOXED:
+                    stack[sp++] = ((Variable) locals[readShort(code, ip)]).value;
+                    ip += 2;
+                    break;
+                case OpCode.SET_BOXED:
+                    ((Variable) locals[readShort(code, ip)]).value = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OpCode.DEFINE_BOXED:
+                    locals[readShort(code, ip)] = new Variable(stack[sp - 1]);
+                    ip += 2;
+                    break;
+                case OpCode.GET_GLOBAL:
+                    stack[sp++] = ((Variable) constants[readInt(code, ip)]).value;
+                    ip += 4;
+                    break;
+                case OpCode.SET_GLOBAL:
+                    ((Variable) constants[readInt(code, ip)]).value = stack[sp - 1];
+                    ip += 4;
+                    break;
+                case OpCode.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double) left + (double) right;
+                    } else if (left instanceof String && right instanceof String) {
+                        stack[sp - 1] = (String) left + right;
+                    } else {
+                        throw new RuntimeError(prototype.chunk.tokens[start],
+                                "Operands must be numbers or strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left - (double) right;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left * (double) right;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left / (double) right;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left > (double) right;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left >= (double) right;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left < (double) right;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumbers(prototype, start, left, right);
+                    stack[sp - 1] = (double) left <= (double) right;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NEGATE:
+                    checkNumber(prototype, start, stack[sp - 1]);
+                    stack[sp - 1] = -(double) stack[sp - 1];
+                    break;
+                case OpCode.NOT:
+                    checkNumber(prototype, start, stack[sp - 1]);
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.JUMP:
+                    ip += readInt(code, ip) + 4;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 4;
+                    } else {
+                        ip += readInt(code, ip) + 4;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip -= readInt(code, ip) - 4;
+                    break;
+                case OpCode.CHECK_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    Object callee = stack[sp - 1];
+
+                    if (!(callee instanceof Callable)) {
+                        throw new RuntimeError(prototype.chunk.tokens[start], "Can only call functions.");
+                    }
+
+                    Callable function = (Callable) callee;
+
+                    if (function.arity() != argCount) {
+                        throw new RuntimeError(prototype.chunk.tokens[start],
+                                "Expected " + function.arity() + " arguments but got " + argCount + ".");
+                    }
+                    break;
+                }
+                // the callee passed CHECK_CALL
+                case OpCode.CALL:
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    Callable function = (Callable) stack[sp - argCount - 1];
+
+                    if (!(function instanceof VMFunction)) {
+                        try {
+                            stack[sp - argCount - 1] = callNative(function, stack, sp - argCount, argCount);
+                        } catch (Interpreter.NativeError error) {
+                            throw new RuntimeError(prototype.chunk.tokens[start], error.getMessage());
+                        }
+                        sp -= argCount;
+                        break;
+                    }
+
+                    // a tail call returns straight to our caller, so our frame is not kept
+                    if (op == OpCode.CALL) {
+                        if (frameCount == FRAMES_MAX) {
+                            throw new RuntimeError(prototype.chunk.tokens[start], "Stack overflow.");
+                        }
+
+                        CallFrame frame = pushFrame(frameCount++);
+                        frame.prototype = prototype;
+                        frame.locals = locals;
+                        frame.ip = ip;
+                    }
+
+                    VMFunction closure = (VMFunction) function;
+                    prototype = closure.prototype;
+                    code = prototype.chunk.code;
+                    constants = prototype.chunk.constants();
+                    locals = new Object[prototype.frameSize];
+                    locals[0] = closure.captures;
+                    System.arraycopy(stack, sp - argCount, locals, 1, argCount);
+                    Function.boxParameters(prototype.boxedParameters, locals);
+                    sp -= argCount + 1;
+                    ip = 0;
+                    stack = ensureStack(sp, prototype);
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    Prototype function = (Prototype) constants[readInt(code, ip)];
+                    VMFunction closure = new VMFunction(function, Function.capture(function.captures, locals));
+                    stack[sp++] = interpreter.closure(closure, function.memoizable);
+                    ip += 4;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+
+                    if (frameCount == 0) {
+                        return result;
+                    }
+
+                    CallFrame frame = frames[--frameCount];
+                    prototype = frame.prototype;
+                    code = prototype.chunk.code;
+                    constants = prototype.chunk.constants();
+                    locals = frame.locals;
+                    ip = frame.ip;
+                    frame.prototype = null;
+                    frame.locals = null;
+
+                    stack[sp++] = result;
+                    break;
+                }
+                case OpCode.PRINT:
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op + ".");
+            }
+        }
+    }
+
+    private Object callNative(Callable function, Object[] stack, int first, int argCount) {
+        switch (argCount) {
+            case 0:
+                return function.call0(interpreter);
+            case 1:
+                return function.call1(interpreter, stack[first]);
+            case 2:
+                return function.call2(interpreter, stack[first], stack[first + 1]);
+            case 3:
+                return function.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+            case 4:
+                return function.call4(interpreter, stack[first], stack[first + 1], stack[first + 2], stack[first + 3]);
+        }
+
+        List<Object> arguments = new ArrayList<>(argCount);
+        for (int i = first; i < first + argCount; ++i) {
+            arguments.add(stack[i]);
+        }
+        return function.call(interpreter, arguments);
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 24) | ((code[offset + 1] & 0xff) << 16)
+                | ((code[offset + 2] & 0xff) << 8) | (code[offset + 3] & 0xff);
+    }
+
+    private CallFrame pushFrame(int index) {
+        if (index == frames.length) {
+            frames = Arrays.copyOf(frames, index * 2);
+        }
+        if (frames[index] == null) {
+            frames[index] = new CallFrame();
+        }
+        return frames[index];
+    }
+
+    private Object[] ensureStack(int sp, Prototype prototype) {
+        // no instruction pushes more than one value, so the code length bounds the stack use of a call
+        int needed = sp + prototype.chunk.count + 1;
+        if (needed > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+        }
+        return stack;
+    }
+
+    private static void checkNumber(Prototype prototype, int offset, Object operand) {
+        if (operand instanceof Double) {
+            return;
+        }
+        throw new RuntimeError(prototype.chunk.tokens[offset], "Operand must be a number.");
+    }
+
+    private static void checkNumbers(Prototype prototype, int offset, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return;
+        }
+        throw new RuntimeError(prototype.chunk.tokens[offset], "Operands must be numbers.");
+    }
+}
@@ -0,0 +1,44 @@
+package com.iswoqqe.lox;
+
+import java.util.List;
+
+class VMFunction implements Callable {
+    final Prototype prototype;
+    final Variable[] captures;
+
+    VMFunction(Prototype prototype, Variable[] captures) {
+        this.prototype = prototype;
+        this.captures = captures;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        // the VM calls its functions itself, this is for natives
+        return VM.call(interpreter, this, arguments);
+    }
+
+    @Override
+    public int arity() {
+        return prototype.arity();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<fn(");
+
+        boolean first = true;
+
+        for (Token param : prototype.parameters) {
+            if (!first) {
+                builder.append(", ");
+            }
+            builder.append(param.lexeme);
+            first = false;
+        }
+
+        builder.append(")>");
+
+        return builder.toString();
+    }
+}
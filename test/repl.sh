@@ -0,0 +1,11 @@
+#!/bin/sh
+# usage: repl.sh <classes dir>
+# Pipes each repl/*.lox into the prompt, blank lines end an input, and compares the output with the .out file.
+status=0
+for f in "$(dirname "$0")"/repl/*.lox; do
+    if ! java -cp "$1" com.iswoqqe.lox.Lox < "$f" | diff -u "${f%.lox}.out" - ; then
+        echo "FAIL $f"
+        status=1
+    fi
+done
+exit $status